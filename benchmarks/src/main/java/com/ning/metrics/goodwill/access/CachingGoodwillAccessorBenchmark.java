@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CachingGoodwillAccessor lookups, against an in-memory registry. Run with -t to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CachingGoodwillAccessorBenchmark
+{
+    private static final int NB_FIELDS = 10;
+
+    @Param({"10", "1000", "50000"})
+    public int registrySize;
+
+    private StubGoodwillAccessor registry;
+    // Default configuration: unknown names go into the negative cache
+    private CachingGoodwillAccessor accessor;
+    // No negative cache: each miss goes through a (not modified) refresh
+    private CachingGoodwillAccessor refreshingAccessor;
+    private String[] knownNames;
+    private String[] unknownNames;
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int index = 0;
+
+        int next(final int length)
+        {
+            index = index + 1 >= length ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Setup
+    public void setUp()
+    {
+        final List<GoodwillSchema> schemata = new ArrayList<GoodwillSchema>(registrySize);
+        knownNames = new String[registrySize];
+        unknownNames = new String[Math.min(registrySize, 1000)];
+        for (int i = 0; i < registrySize; i++) {
+            knownNames[i] = "Schema" + i;
+            schemata.add(SchemaBenchmark.createSchema(knownNames[i], NB_FIELDS));
+        }
+        for (int i = 0; i < unknownNames.length; i++) {
+            unknownNames[i] = "Unknown" + i;
+        }
+
+        registry = new StubGoodwillAccessor(schemata);
+        accessor = new CachingGoodwillAccessor(registry, new CachingGoodwillAccessorConfig().setCacheTimeoutInSeconds(3600));
+        accessor.refreshSchemataCache();
+        refreshingAccessor = new CachingGoodwillAccessor(registry, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setNegativeCacheTtlInMillis(0));
+        refreshingAccessor.refreshSchemataCache();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        accessor.close();
+        refreshingAccessor.close();
+        registry.close();
+    }
+
+    @Benchmark
+    public GoodwillSchema hit(final Cursor cursor)
+    {
+        return accessor.getSchema(knownNames[cursor.next(knownNames.length)]);
+    }
+
+    @Benchmark
+    public GoodwillSchema missNegativeCached(final Cursor cursor)
+    {
+        return accessor.getSchema(unknownNames[cursor.next(unknownNames.length)]);
+    }
+
+    @Benchmark
+    public GoodwillSchema missRefresh(final Cursor cursor)
+    {
+        return refreshingAccessor.getSchema(unknownNames[cursor.next(unknownNames.length)]);
+    }
+
+    /**
+     * Serve a fixed registry from memory, without HTTP. Conditional listings are answered as not modified.
+     */
+    private static final class StubGoodwillAccessor extends GoodwillAccessor
+    {
+        private static final String ETAG = "\"stub\"";
+
+        private final List<GoodwillSchema> schemata;
+
+        StubGoodwillAccessor(final List<GoodwillSchema> schemata)
+        {
+            super("127.0.0.1", 0);
+            this.schemata = schemata;
+        }
+
+        @Override
+        public ListenableFuture<List<GoodwillSchema>> getSchemata()
+        {
+            return Futures.immediateFuture(schemata);
+        }
+
+        @Override
+        public ListenableFuture<SchemataResponse> getSchemataIfModified(final String eTag, final String lastModified)
+        {
+            if (ETAG.equals(eTag)) {
+                return Futures.immediateFuture(SchemataResponse.notModified(eTag, lastModified));
+            }
+            else {
+                return Futures.immediateFuture(new SchemataResponse(schemata, ETAG, null, null));
+            }
+        }
+    }
+}
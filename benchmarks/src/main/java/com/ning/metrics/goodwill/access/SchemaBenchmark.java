@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schema model: (de)serialization and field lookups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SchemaBenchmark
+{
+    @Param({"5", "50"})
+    public int nbFields;
+
+    private GoodwillSchema schema;
+    private String json;
+    private String[] fieldNames;
+    private short[] fieldPositions;
+    private GoodwillSchemaField[] fields;
+    private int index = 0;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        schema = createSchema("Benchmark", nbFields);
+        json = schema.toString();
+
+        fields = schema.getFields().toArray(new GoodwillSchemaField[nbFields]);
+        fieldNames = new String[nbFields];
+        fieldPositions = new short[nbFields];
+        for (int i = 0; i < nbFields; i++) {
+            fieldNames[i] = fields[i].getName();
+            fieldPositions[i] = fields[i].getId();
+        }
+    }
+
+    static GoodwillSchema createSchema(final String name, final int nbFields)
+    {
+        final List<GoodwillSchemaField> items = new ArrayList<GoodwillSchemaField>(nbFields);
+        for (int i = 1; i <= nbFields; i++) {
+            if (i % 2 == 0) {
+                items.add(new GoodwillSchemaField("field" + i, "string", (short) i, "String field " + i, "nvarchar", 255, null, null));
+            }
+            else {
+                items.add(new GoodwillSchemaField("field" + i, "double", (short) i, "Numeric field " + i, "numeric", null, 12, 42));
+            }
+        }
+        return new GoodwillSchema(name, items, null);
+    }
+
+    private int nextIndex()
+    {
+        index = index + 1 == nbFields ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public GoodwillSchema decode() throws IOException
+    {
+        return GoodwillSchema.decode(json);
+    }
+
+    @Benchmark
+    public byte[] toJSONBytes() throws IOException
+    {
+        return schema.toJSONBytes();
+    }
+
+    @Benchmark
+    public String schemaToString()
+    {
+        return schema.toString();
+    }
+
+    @Benchmark
+    public GoodwillSchemaField getFieldByName()
+    {
+        return schema.getFieldByName(fieldNames[nextIndex()]);
+    }
+
+    @Benchmark
+    public GoodwillSchemaField getFieldByPosition()
+    {
+        return schema.getFieldByPosition(fieldPositions[nextIndex()]);
+    }
+
+    @Benchmark
+    public List<GoodwillSchemaField> getSchema()
+    {
+        return schema.getSchema();
+    }
+
+    @Benchmark
+    public List<GoodwillSchemaField> getFields()
+    {
+        return schema.getFields();
+    }
+
+    @Benchmark
+    public String getFullSQLType()
+    {
+        return fields[nextIndex()].getFullSQLType();
+    }
+}
@@ -31,6 +31,11 @@ abstract class Accessor
     {
         this.port = port;
         this.host = host;
-        this.url = String.format("http://%s:%d/registrar", host, port);
+        this.url = getRegistrarUrl(host, port);
+    }
+
+    static String getRegistrarUrl(final String host, final int port)
+    {
+        return String.format("http://%s:%d/registrar", host, port);
     }
 }
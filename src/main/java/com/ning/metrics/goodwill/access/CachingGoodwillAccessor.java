@@ -16,106 +16,1125 @@
 
 package com.ning.metrics.goodwill.access;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.mogwee.executors.Executors;
 
-import java.util.Collections;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CachingGoodwillAccessor extends Accessor
 {
-    private static final int DEFAULT_CACHE_TIMEOUT_IN_SECONDS = 90;
-    private final Object cacheMonitor = new Object();
-
-    private final ConcurrentHashMap<String, GoodwillSchema> knownSchemata = new ConcurrentHashMap<String, GoodwillSchema>();
+    private volatile SchemataSnapshot snapshot = SchemataSnapshot.EMPTY;
+    private final SchemaInterner interner = new SchemaInterner();
+    private final NegativeCache unknownSchemata;
     private final GoodwillAccessor delegate;
+    private final boolean ownsDelegate;
+
+    // In ON_DEMAND mode, the schemata are cached here and the snapshot stays empty
+    private final OnDemandSchemaCache onDemandSchemata;
+
+    // Refresh currently running, shared by all callers asking for one in the meantime
+    private final AtomicReference<Refresh> inFlightRefresh = new AtomicReference<Refresh>();
+    private final AtomicLong lastMissRefreshInMillis = new AtomicLong(0);
+    // Start of the last successful refresh: names missing from the snapshot were unknown to Goodwill as of then
+    private volatile long confirmedAsOfInMillis = 0;
+    private final long minMissRefreshIntervalInMillis;
+
+    // Stale-while-revalidate: stale entries trigger at most one revalidation per revalidationIntervalInMillis
+    private final long softTtlInMillis;
+    private final long hardTtlInMillis;
+    private final long revalidationIntervalInMillis;
+    private final AtomicLong lastRevalidationInMillis = new AtomicLong(0);
+
+    private final CachingGoodwillAccessorStats stats;
+
+    // Each new snapshot is saved there (null if disabled), see CachingGoodwillAccessorConfig#setSnapshotFile
+    private final File snapshotFile;
+    private final CountDownLatch initialLoad = new CountDownLatch(1);
+    // Snapshot file I/O, off the shared scheduler (null if disabled). Writes are coalesced: only the latest pending
+    // snapshot is saved
+    private final ExecutorService snapshotFileExecutor;
+    private final AtomicReference<SchemataSnapshot> pendingWrite = new AtomicReference<SchemataSnapshot>();
+    // Snapshot the file holds, only accessed by the snapshot file thread (and the constructor)
+    private SchemataSnapshot savedSnapshot = null;
+    private final Runnable snapshotWriter = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            writeSnapshot();
+        }
+    };
+
+    // Shared with co-located processes (null if not): unless this one publishes, refreshes read the file
+    private final SharedSnapshotFile sharedSnapshot;
+    private final long sharedSnapshotCheckIntervalInMillis;
+
+    // Changes pushed by Goodwill, applied as refreshes. The subscription is (re)started by successful refreshes
+    private final boolean subscriptionEnabled;
+    private final long safetyNetRefreshIntervalInMillis;
+    private GoodwillSubscription subscription = null;
+    private final GoodwillChangeListener changeListener = new GoodwillChangeListener()
+    {
+        @Override
+        public void onChanges(final String sinceCursor, final SchemataResponse changes)
+        {
+            refresh(RefreshTrigger.PUSH, sinceCursor, changes);
+        }
+
+        @Override
+        public void onSubscriptionEnded(final Throwable cause)
+        {
+            onSubscriptionLost();
+        }
+    };
+
+    // Background refreshes, run by the shared scheduler: each one schedules the next once complete
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+    private final RefreshPolicy refreshPolicy;
+    private final double refreshJitter;
+    private final long refreshPhaseOffsetInMillis;
+    private boolean refreshPhaseOffsetApplied = false;
+    private ScheduledFuture<?> nextRefresh = null;
+    private volatile boolean closed = false;
+
+    private final Runnable scheduledRefresh = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            refresh(RefreshTrigger.SCHEDULED).addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    scheduleRefresh(nextRefreshDelayInMillis());
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    };
+    private final ObjectName jmxObjectName;
+    private final ObjectName httpJmxObjectName;
 
     public CachingGoodwillAccessor(final String host, final int port)
     {
-        this(host, port, DEFAULT_CACHE_TIMEOUT_IN_SECONDS);
+        this(host, port, new CachingGoodwillAccessorConfig());
     }
 
     public CachingGoodwillAccessor(final String host, final int port, final int cacheTimeoutInSeconds)
+    {
+        this(host, port, new CachingGoodwillAccessorConfig().setCacheTimeoutInSeconds(cacheTimeoutInSeconds));
+    }
+
+    /**
+     * @param host                           Goodwill host
+     * @param port                           Goodwill port
+     * @param cacheTimeoutInSeconds          delay between two background refreshes
+     * @param minMissRefreshIntervalInMillis minimum delay between two refreshes triggered by cache misses (0 for no limit)
+     */
+    public CachingGoodwillAccessor(final String host, final int port, final int cacheTimeoutInSeconds, final long minMissRefreshIntervalInMillis)
+    {
+        this(host, port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(cacheTimeoutInSeconds)
+            .setMinMissRefreshIntervalInMillis(minMissRefreshIntervalInMillis));
+    }
+
+    public CachingGoodwillAccessor(final String host, final int port, final CachingGoodwillAccessorConfig config)
+    {
+        this(host, port, new GoodwillAccessor(host, port), true, config);
+    }
+
+    /**
+     * @param host           Goodwill host
+     * @param port           Goodwill port
+     * @param accessorConfig configuration of the accessor fetching the schemata (http client, timeouts, ...)
+     * @param config         cache configuration
+     */
+    public CachingGoodwillAccessor(final String host, final int port, final GoodwillAccessorConfig accessorConfig, final CachingGoodwillAccessorConfig config)
+    {
+        this(host, port, new GoodwillAccessor(host, port, accessorConfig), true, config);
+    }
+
+    /**
+     * Cache the schemata fetched by an existing accessor. The accessor is not closed by {@link #close()}.
+     *
+     * @param delegate accessor to fetch the schemata with
+     * @param config   cache configuration
+     */
+    public CachingGoodwillAccessor(final GoodwillAccessor delegate, final CachingGoodwillAccessorConfig config)
+    {
+        this(delegate.host, delegate.port, delegate, false, config);
+    }
+
+    private CachingGoodwillAccessor(final String host, final int port, final GoodwillAccessor delegate, final boolean ownsDelegate, final CachingGoodwillAccessorConfig config)
     {
         super(host, port);
 
-        delegate = new GoodwillAccessor(host, port);
+        this.minMissRefreshIntervalInMillis = config.getMinMissRefreshIntervalInMillis();
+        this.softTtlInMillis = config.getSoftTtlInMillis();
+        this.hardTtlInMillis = config.getHardTtlInMillis();
+        this.revalidationIntervalInMillis = softTtlInMillis > 0 ? softTtlInMillis : hardTtlInMillis;
+        this.unknownSchemata = new NegativeCache(config.getNegativeCacheTtlInMillis(), config.getNegativeCacheMaxSize());
+        this.delegate = delegate;
+        this.ownsDelegate = ownsDelegate;
+        this.stats = new CachingGoodwillAccessorStats(this, delegate.getStats());
+        if (config.getLoadingMode() == CachingGoodwillAccessorConfig.LoadingMode.ON_DEMAND) {
+            this.onDemandSchemata = new OnDemandSchemaCache(delegate, interner, config.getMaxCachedSchemata(), config.getPinnedSchemata(), unknownSchemata);
+            this.snapshotFile = null;
+        }
+        else {
+            this.onDemandSchemata = null;
+            this.snapshotFile = config.getSnapshotFile();
+            restoreSnapshot();
+        }
+        this.snapshotFileExecutor = snapshotFile != null ? Executors.newSingleThreadExecutor("GoodwillSnapshotFile") : null;
+        if (snapshotFile != null && config.isSnapshotFileShared()) {
+            this.sharedSnapshot = new SharedSnapshotFile(snapshotFile);
+        }
+        else {
+            this.sharedSnapshot = null;
+        }
+        this.sharedSnapshotCheckIntervalInMillis = config.getSharedSnapshotCheckIntervalInMillis();
+        this.subscriptionEnabled = config.isSubscriptionEnabled() && onDemandSchemata == null;
+        this.safetyNetRefreshIntervalInMillis = TimeUnit.SECONDS.toMillis(config.getSafetyNetRefreshIntervalInSeconds());
+
+        final long refreshIntervalInMillis = TimeUnit.SECONDS.toMillis(config.getCacheTimeoutInSeconds());
+        this.refreshPolicy = new RefreshPolicy(TimeUnit.SECONDS.toMillis(config.getMinRefreshIntervalInSeconds()),
+            TimeUnit.SECONDS.toMillis(config.getMaxRefreshIntervalInSeconds()), config.getRefreshBackoffMultiplier(), refreshIntervalInMillis);
+        this.refreshJitter = Math.max(0, Math.min(1, config.getRefreshJitter()));
+        if (config.getRefreshPhaseOffsetInMillis() == CachingGoodwillAccessorConfig.RANDOM_REFRESH_PHASE_OFFSET) {
+            this.refreshPhaseOffsetInMillis = (long) (random.nextDouble() * refreshIntervalInMillis);
+        }
+        else {
+            this.refreshPhaseOffsetInMillis = config.getRefreshPhaseOffsetInMillis();
+        }
 
-        Executors.newScheduledThreadPool(1, "GoodwillCacheRefresher").scheduleWithFixedDelay(new Runnable()
-        {
-            @Override
-            public void run()
+        this.scheduler = RefreshScheduler.acquire();
+        if (onDemandSchemata != null) {
+            // Only the pinned schemata are worth warming up, the others are fetched on first use
+            onDemandSchemata.prefetch().addListener(new Runnable()
             {
-                refreshSchemataCache();
+                @Override
+                public void run()
+                {
+                    initialLoad.countDown();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            scheduleRefresh(nextRefreshDelayInMillis());
+        }
+        else {
+            // Warm up the cache right away (or revalidate the restored snapshot)
+            scheduleRefresh(0);
+        }
+
+        // Last: JMX clients can read the statistics, hence this accessor, as soon as they are registered
+        this.jmxObjectName = JmxSupport.register(stats, config.getJmxObjectName());
+        if (jmxObjectName != null && ownsDelegate) {
+            // Nobody else can publish the statistics of the accessor we created
+            this.httpJmxObjectName = JmxSupport.register(delegate.getStats(), config.getJmxObjectName() + ",component=http");
+        }
+        else {
+            this.httpJmxObjectName = null;
+        }
+    }
+
+    private void restoreSnapshot()
+    {
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return;
+        }
+
+        final long startedAtInNanos = System.nanoTime();
+        try {
+            snapshot = SnapshotFile.read(snapshotFile);
+            savedSnapshot = snapshot;
+            initialLoad.countDown();
+            log.info("Restored {} schemata from {} in {} ms", new Object[]{snapshot.size(), snapshotFile, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtInNanos)});
+        }
+        catch (IOException e) {
+            log.warn("Unable to restore schemata from {}: {}", snapshotFile, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Save the snapshot, on the snapshot file thread. Snapshots superseded before their turn are skipped.
+     *
+     * @param published  snapshot to save
+     * @param unmodified true if Goodwill only confirmed the snapshot: processes sharing the file are told so
+     */
+    private void persist(final SchemataSnapshot published, final boolean unmodified)
+    {
+        if (snapshotFile == null || (unmodified && sharedSnapshot == null)) {
+            return;
+        }
+
+        if (pendingWrite.getAndSet(published) != null) {
+            // The queued write will pick this one up
+            return;
+        }
+        try {
+            snapshotFileExecutor.execute(snapshotWriter);
+        }
+        catch (RejectedExecutionException e) {
+            // Closed in the meantime
+        }
+    }
+
+    private void writeSnapshot()
+    {
+        final SchemataSnapshot pending = pendingWrite.getAndSet(null);
+        if (pending == null) {
+            return;
+        }
+
+        if (pending == savedSnapshot) {
+            if (sharedSnapshot != null) {
+                sharedSnapshot.markValidated(pending.getValidationTimeInMillis());
+            }
+            return;
+        }
+
+        try {
+            if (savedSnapshot != null && pending.hasSameSchemata(savedSnapshot)) {
+                // Only the cursor moved forward
+                SnapshotFile.writeCursor(snapshotFile, pending);
+                if (sharedSnapshot != null) {
+                    sharedSnapshot.markValidated(pending.getValidationTimeInMillis());
+                }
             }
-        }, 0, cacheTimeoutInSeconds, TimeUnit.SECONDS);
+            else {
+                SnapshotFile.write(snapshotFile, pending);
+            }
+            savedSnapshot = pending;
+        }
+        catch (IOException e) {
+            log.warn("Unable to save schemata to {}: {}", snapshotFile, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Subscribe to the changes from the cursor of the current snapshot, unless already subscribed
+     */
+    private synchronized void subscribeIfNeeded()
+    {
+        final String cursor = snapshot.getCursor();
+        if (!subscriptionEnabled || closed || cursor == null || (subscription != null && !subscription.isClosed())) {
+            return;
+        }
+        if (sharedSnapshot != null && !sharedSnapshot.isPublisher()) {
+            return;
+        }
+
+        try {
+            subscription = delegate.subscribe(cursor, changeListener);
+        }
+        catch (IllegalStateException e) {
+            // The accessor provided by the caller has been closed
+        }
+    }
+
+    /**
+     * Until a refresh subscribes again, refresh at the regular interval
+     */
+    private synchronized void onSubscriptionLost()
+    {
+        subscription = null;
+        if (!closed && nextRefresh != null && nextRefresh.cancel(false)) {
+            scheduleRefresh(nextRefreshDelayInMillis());
+        }
+    }
+
+    /**
+     * Wait until the cache can serve lookups: the schemata were restored from the snapshot file, or fetched by
+     * the first successful refresh (or read from the shared snapshot file, once published). In ON_DEMAND mode, once the pinned schemata were fetched, or failed to.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return true if the cache is ready, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitInitialLoad(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return initialLoad.await(timeout, unit);
+    }
+
+    private synchronized void scheduleRefresh(final long delayInMillis)
+    {
+        if (!closed) {
+            nextRefresh = scheduler.schedule(scheduledRefresh, delayInMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized long nextRefreshDelayInMillis()
+    {
+        final long intervalInMillis;
+        if (sharedSnapshot != null && !sharedSnapshot.isPublisher()) {
+            intervalInMillis = sharedSnapshotCheckIntervalInMillis;
+        }
+        else if (subscription != null && !subscription.isClosed()) {
+            intervalInMillis = safetyNetRefreshIntervalInMillis;
+        }
+        else {
+            intervalInMillis = refreshPolicy.getIntervalInMillis();
+        }
+        long delayInMillis = jitter(intervalInMillis, refreshJitter, random);
+        if (!refreshPhaseOffsetApplied) {
+            delayInMillis += refreshPhaseOffsetInMillis;
+            refreshPhaseOffsetApplied = true;
+        }
+        return delayInMillis;
+    }
+
+    /**
+     * @return a random delay, within interval plus or minus jitter times the interval
+     */
+    static long jitter(final long intervalInMillis, final double jitter, final Random random)
+    {
+        return Math.max(0, (long) (intervalInMillis * (1 + jitter * (2 * random.nextDouble() - 1))));
     }
 
     /**
      * Invalidate and refresh the cache
      * <p/>
-     * This is blocking and returns when the cache has been updated
+     * This is blocking and returns when the cache has been updated. Concurrent callers share
+     * the same refresh: only the first one hits Goodwill, the others wait for its result.
+     *
+     * @see #refreshAsync()
      */
     public void refreshSchemataCache()
+    {
+        await(refresh(RefreshTrigger.EXPLICIT));
+    }
+
+    private void await(final ListenableFuture<SchemataSnapshot> refresh)
     {
         try {
-            final List<GoodwillSchema> schemata = delegate.getSchemata().get();
+            refresh.get();
+        }
+        catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the cache refresh");
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            log.warn("Unable to refresh schemata cache: {}", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Invalidate and refresh the cache, without blocking.
+     * <p/>
+     * Concurrent callers share the same refresh. The returned future completes with the snapshot in use
+     * once the refresh is over: if Goodwill couldn't be reached, this is the previous one. In ON_DEMAND mode,
+     * the schemata in use are reloaded and the snapshot is always empty.
+     *
+     * @return a future on the refreshed snapshot
+     */
+    public ListenableFuture<SchemataSnapshot> refreshAsync()
+    {
+        return refresh(RefreshTrigger.EXPLICIT);
+    }
+
+    private ListenableFuture<SchemataSnapshot> refresh(final RefreshTrigger trigger)
+    {
+        return refresh(trigger, null, null);
+    }
 
-            // If Goodwill is down - keep the old cache around
-            if (schemata == null) {
+    /**
+     * @param pushedSince cursor the pushed changes are relative to, null if none
+     * @param pushed      changes pushed by Goodwill: applied as is if they are relative to the current snapshot,
+     *                    otherwise the refresh fetches the changes since the current snapshot
+     */
+    private ListenableFuture<SchemataSnapshot> refresh(final RefreshTrigger trigger, final String pushedSince, final SchemataResponse pushed)
+    {
+        if (closed) {
+            // The schedulers and the http client may be gone: keep serving what we have
+            return Futures.immediateFuture(snapshot);
+        }
+
+        while (true) {
+            final Refresh current = inFlightRefresh.get();
+            if (current != null) {
+                if (pushed != null) {
+                    // The refresh in flight may have started before the changes: apply them once it is over
+                    current.future.addListener(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            refresh(trigger, pushedSince, pushed);
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                }
+                return current.future;
+            }
+
+            final Refresh refresh = new Refresh(trigger, snapshot, pushedSince, pushed);
+            if (inFlightRefresh.compareAndSet(null, refresh)) {
+                switch (trigger) {
+                    case SCHEDULED:
+                        stats.recordScheduledRefresh();
+                        break;
+                    case MISS:
+                        stats.recordMissRefresh();
+                        break;
+                    case STALE:
+                        stats.recordStaleRefresh();
+                        break;
+                    case PUSH:
+                        stats.recordPushRefresh();
+                        break;
+                    default:
+                        stats.recordExplicitRefresh();
+                }
+                refresh.start();
+                return refresh.future;
+            }
+        }
+    }
+
+    private enum RefreshTrigger
+    {
+        SCHEDULED,
+        MISS,
+        STALE,
+        PUSH,
+        EXPLICIT
+    }
+
+    /**
+     * A refresh of the cache, from the snapshot current when it started
+     */
+    private final class Refresh
+    {
+        private final SettableFuture<SchemataSnapshot> future = SettableFuture.create();
+        private final RefreshTrigger trigger;
+        private final SchemataSnapshot current;
+        private final String pushedSince;
+        private final SchemataResponse pushed;
+        private final long startedAtInNanos = System.nanoTime();
+        private final long startedAtInMillis = System.currentTimeMillis();
+
+        private Refresh(final RefreshTrigger trigger, final SchemataSnapshot current, final String pushedSince, final SchemataResponse pushed)
+        {
+            this.trigger = trigger;
+            this.current = current;
+            this.pushedSince = pushedSince;
+            this.pushed = pushed;
+        }
+
+        private void start()
+        {
+            if (pushed != null && pushed.getCursor() != null && pushed.getCursor().equals(current.getCursor())) {
+                // Already fetched by an earlier refresh
+                complete(true, false, current);
+            }
+            else if (pushed != null && (!pushed.isDelta() || pushedSince.equals(current.getCursor()))) {
+                complete(pushed);
+            }
+            else if (onDemandSchemata != null) {
+                reload();
+            }
+            else if (sharedSnapshot != null && !sharedSnapshot.tryBecomePublisher()) {
+                // Another process polls Goodwill for us
+                readShared();
+            }
+            else {
+                // Ask for the changes only if Goodwill supports it, otherwise (or if it can't serve them) get everything
+                fetch(current.getCursor() != null);
+            }
+        }
+
+        private void reload()
+        {
+            final ListenableFuture<Boolean> reload = onDemandSchemata.reloadAll();
+            reload.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Boolean modified = null;
+                    try {
+                        modified = reload.get();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    catch (ExecutionException e) {
+                        log.warn("Unable to refresh schemata cache: {}", e.getLocalizedMessage());
+                    }
+
+                    complete(modified != null, Boolean.TRUE.equals(modified), current);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void readShared()
+        {
+            try {
+                // Mapping and decoding the file would hold up the shared scheduler
+                snapshotFileExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        readSharedFile();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // Closed in the meantime
+                complete(false, false, current);
+            }
+        }
+
+        private void readSharedFile()
+        {
+            if (!sharedSnapshot.exists()) {
+                // Nothing published yet
+                complete(false, false, current);
                 return;
             }
 
-            final Map<String,GoodwillSchema> newSchemataCache = new ConcurrentHashMap<String, GoodwillSchema>();
-            for (final GoodwillSchema schema : schemata) {
-                newSchemataCache.put(schema.getName(), schema);
+            final SchemataSnapshot published;
+            try {
+                published = sharedSnapshot.readIfChanged(current, interner);
+            }
+            catch (IOException e) {
+                log.warn("Unable to read schemata from {}: {}", sharedSnapshot.getFile(), e.getLocalizedMessage());
+                complete(false, false, current);
+                return;
             }
 
-            synchronized (cacheMonitor) {
-                knownSchemata.clear();
-                knownSchemata.putAll(newSchemataCache);
+            if (published != null) {
+                snapshot = published;
+                savedSnapshot = published;
+                // A cursor-only update leaves the schemata as they were
+                completeFromFile(published.getCreationTimeInMillis() != current.getCreationTimeInMillis(), published);
+            }
+            else {
+                completeFromFile(false, current);
             }
         }
-        catch (InterruptedException e) {
-            log.warn("Interrupted while refreshing the cache");
-            Thread.currentThread().interrupt();
+
+        private void fetch(final boolean changesOnly)
+        {
+            final ListenableFuture<SchemataResponse> listing;
+            try {
+                if (changesOnly) {
+                    listing = delegate.getSchemataSince(current.getCursor());
+                }
+                else {
+                    listing = delegate.getSchemataIfModified(current.getETag(), current.getLastModified());
+                }
+            }
+            catch (RuntimeException e) {
+                log.warn("Unable to refresh schemata cache", e);
+                complete(null);
+                return;
+            }
+
+            // Runs on the thread completing the listing (a decode thread of the delegate): keep it short
+            listing.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    SchemataResponse response = null;
+                    try {
+                        response = listing.get();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    catch (ExecutionException e) {
+                        if (changesOnly) {
+                            fetch(false);
+                            return;
+                        }
+                        log.warn("Unable to refresh schemata cache: {}", e.getLocalizedMessage());
+                    }
+
+                    complete(response);
+                }
+            }, MoreExecutors.sameThreadExecutor());
         }
-        catch (ExecutionException e) {
-            log.warn("Unable to refresh schemata cache: {}", e.getLocalizedMessage());
+
+        private void complete(final SchemataResponse response)
+        {
+            SchemataSnapshot result = current;
+            boolean modified = false;
+            try {
+                final boolean emptyDelta = response != null && response.isDelta() && response.getSchemata().isEmpty() && response.getRemovedSchemata().isEmpty();
+                // If Goodwill is down (null response) or nothing changed since the last refresh - keep the current snapshot
+                if (response != null && response.isModified() && !emptyDelta) {
+                    // Build the new snapshot aside and publish it in one step. Refreshes never overlap (see inFlightRefresh),
+                    // so there is no concurrent writer to race with
+                    result = current.next(response, interner);
+                    snapshot = result;
+                    modified = true;
+                    persist(result, false);
+                }
+                else if (emptyDelta && response.getCursor() != null && !response.getCursor().equals(current.getCursor())) {
+                    // Keep the new cursor, otherwise the next syncs would replay the changes since the old one. The schemata
+                    // are the same: only the cursor is saved, and the processes sharing the snapshot file only pick it up
+                    result = current.withCursor(response.getCursor(), startedAtInMillis);
+                    snapshot = result;
+                    persist(result, false);
+                }
+                else if (response != null) {
+                    current.markValidated(startedAtInMillis);
+                    persist(current, true);
+                }
+            }
+            catch (RuntimeException e) {
+                log.warn("Unable to refresh schemata cache", e);
+            }
+            finally {
+                complete(response != null, modified, result);
+            }
+        }
+
+        /**
+         * Only the publisher heard from Goodwill: the schemata are as fresh as the last validation of the file, and
+         * the refresh policy, driven by the answers of Goodwill, is left alone
+         */
+        private void completeFromFile(final boolean modified, final SchemataSnapshot result)
+        {
+            try {
+                stats.recordRefreshCompleted(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtInNanos), true, modified, result.getValidationTimeInMillis());
+                confirmed(result.getValidationTimeInMillis());
+                initialLoad.countDown();
+            }
+            finally {
+                inFlightRefresh.compareAndSet(this, null);
+                future.set(result);
+            }
+        }
+
+        private void confirmed(final long validationTimeInMillis)
+        {
+            // Refreshes never overlap
+            if (validationTimeInMillis > confirmedAsOfInMillis) {
+                confirmedAsOfInMillis = validationTimeInMillis;
+            }
+        }
+
+        private void complete(final boolean succeeded, final boolean modified, final SchemataSnapshot result)
+        {
+            try {
+                stats.recordRefreshCompleted(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtInNanos), succeeded, modified);
+                if (trigger == RefreshTrigger.SCHEDULED || trigger == RefreshTrigger.EXPLICIT) {
+                    // Misses, stale hits and pushes say nothing about the change rate the polling should follow
+                    refreshPolicy.onRefreshCompleted(modified);
+                }
+                if (succeeded) {
+                    confirmed(startedAtInMillis);
+                    initialLoad.countDown();
+                    subscribeIfNeeded();
+                }
+            }
+            finally {
+                // Let the next caller start a new refresh before waking up the ones waiting on this one
+                inFlightRefresh.compareAndSet(this, null);
+                future.set(result);
+            }
         }
     }
 
     /**
      * Given a schema name, get the associated GoodwillSchema. This method tries hard to find it, i.e. it will refresh the
      * cache if the schema is not in the cache.
+     * <p/>
+     * Refreshes triggered by misses are rate limited, see minMissRefreshIntervalInMillis. Names still missing after
+     * the refresh are remembered for negativeCacheTtlInMillis and won't trigger another one until then.
+     * <p/>
+     * If enabled, while the circuit breaker of the underlying accessor is open, refreshes fail right away: lookups
+     * never wait on Goodwill, they are answered from the cache (null on misses).
      *
      * @param schemaName name of the schema to find
      * @return GoodwillSchema describing the schema
      */
     public GoodwillSchema getSchema(final String schemaName)
     {
-        GoodwillSchema schema = knownSchemata.get(schemaName);
+        if (onDemandSchemata != null) {
+            return await(getSchemaOnDemand(schemaName, -1), schemaName);
+        }
+
+        final SchemataSnapshot current = snapshot;
+        final GoodwillSchema schema = current.getSchema(schemaName);
+        if (schema != null) {
+            stats.recordHit();
+            final ListenableFuture<SchemataSnapshot> revalidation = revalidateIfStale(current, schemaName);
+            if (revalidation != null) {
+                // If Goodwill couldn't be reached, the snapshot is unchanged: keep serving the stale schema
+                await(revalidation);
+                return snapshot.getSchema(schemaName);
+            }
+            return schema;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (unknownSchemata.contains(schemaName, now)) {
+            stats.recordNegativeHit();
+            return null;
+        }
+
+        stats.recordMiss();
+        if (shouldRefreshOnMiss()) {
+            await(refresh(RefreshTrigger.MISS));
+        }
+
+        return lookupAfterRefresh(schemaName, now);
+    }
+
+    /**
+     * Given a schema name, get the associated GoodwillSchema, provided Goodwill confirmed it recently enough.
+     * <p/>
+     * If the cached schema is too stale, the cache is revalidated first (the caller blocks).
+     *
+     * @param schemaName           name of the schema to find
+     * @param maxStalenessInMillis maximum time since Goodwill last confirmed the schema
+     * @return GoodwillSchema describing the schema, null if it doesn't exist or couldn't be revalidated
+     */
+    public GoodwillSchema getSchema(final String schemaName, final long maxStalenessInMillis)
+    {
+        if (onDemandSchemata != null) {
+            return await(getSchemaOnDemand(schemaName, maxStalenessInMillis), schemaName);
+        }
+
+        final SchemataSnapshot current = snapshot;
+        final GoodwillSchema schema = current.getSchema(schemaName);
         if (schema == null) {
-            refreshSchemataCache();
-            schema = knownSchemata.get(schemaName);
+            // The refresh triggered by the miss, if any, gets fresh data
+            return getSchema(schemaName);
+        }
+
+        stats.recordHit();
+        if (current.getStalenessInMillis(schemaName, System.currentTimeMillis()) <= maxStalenessInMillis) {
+            return schema;
+        }
+
+        stats.recordStaleHit();
+        await(refresh(RefreshTrigger.STALE));
+
+        final SchemataSnapshot refreshed = snapshot;
+        final long staleness = refreshed.getStalenessInMillis(schemaName, System.currentTimeMillis());
+        return staleness >= 0 && staleness <= maxStalenessInMillis ? refreshed.getSchema(schemaName) : null;
+    }
+
+    /**
+     * Stale-while-revalidate: past the soft TTL, the schema is returned right away and the cache revalidated in the
+     * background. Past the hard TTL, the caller waits for the revalidation.
+     *
+     * @return the revalidation to wait for, null if the cached schema can be returned right away
+     */
+    private ListenableFuture<SchemataSnapshot> revalidateIfStale(final SchemataSnapshot current, final String schemaName)
+    {
+        if (softTtlInMillis <= 0 && hardTtlInMillis <= 0) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long staleness = current.getStalenessInMillis(schemaName, now);
+        final boolean softExpired = softTtlInMillis > 0 && staleness > softTtlInMillis;
+        final boolean hardExpired = hardTtlInMillis > 0 && staleness > hardTtlInMillis;
+        if (!softExpired && !hardExpired) {
+            return null;
+        }
+
+        stats.recordStaleHit();
+        if (!shouldRevalidate(now)) {
+            // Revalidated recently, but Goodwill couldn't confirm the schema: don't hammer it
+            return null;
+        }
+
+        final ListenableFuture<SchemataSnapshot> refresh = refresh(RefreshTrigger.STALE);
+        return hardExpired ? refresh : null;
+    }
+
+    private boolean shouldRevalidate(final long now)
+    {
+        if (inFlightRefresh.get() != null) {
+            return true;
+        }
+
+        final long last = lastRevalidationInMillis.get();
+        return now - last >= revalidationIntervalInMillis && lastRevalidationInMillis.compareAndSet(last, now);
+    }
+
+    /**
+     * Non-blocking version of {@link #getSchema(String)}.
+     * <p/>
+     * Cache hits (and names known to be missing) complete immediately. Misses complete once the refresh
+     * they trigger, or join, is over. The future never fails: it yields null if the schema couldn't be found.
+     *
+     * @param schemaName name of the schema to find
+     * @return a future on the GoodwillSchema describing the schema
+     */
+    public ListenableFuture<GoodwillSchema> getSchemaAsync(final String schemaName)
+    {
+        if (onDemandSchemata != null) {
+            return getSchemaOnDemand(schemaName, -1);
+        }
+
+        final SchemataSnapshot current = snapshot;
+        final GoodwillSchema schema = current.getSchema(schemaName);
+        if (schema != null) {
+            stats.recordHit();
+            final ListenableFuture<SchemataSnapshot> revalidation = revalidateIfStale(current, schemaName);
+            if (revalidation == null) {
+                return Futures.immediateFuture(schema);
+            }
+
+            final SettableFuture<GoodwillSchema> result = SettableFuture.create();
+            revalidation.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    result.set(snapshot.getSchema(schemaName));
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return result;
         }
 
+        final long now = System.currentTimeMillis();
+        if (unknownSchemata.contains(schemaName, now)) {
+            stats.recordNegativeHit();
+            return Futures.immediateFuture(null);
+        }
+
+        stats.recordMiss();
+        if (!shouldRefreshOnMiss()) {
+            return Futures.immediateFuture(lookupAfterRefresh(schemaName, now));
+        }
+
+        final ListenableFuture<SchemataSnapshot> refresh = refresh(RefreshTrigger.MISS);
+        final SettableFuture<GoodwillSchema> result = SettableFuture.create();
+        refresh.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                result.set(lookupAfterRefresh(schemaName, now));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        return result;
+    }
+
+    /**
+     * ON_DEMAND lookups: misses and expired entries fetch this schema only, soft and hard TTLs apply per schema
+     *
+     * @param maxStalenessInMillis maximum time since the schema was fetched, -1 for the configured TTLs
+     */
+    private ListenableFuture<GoodwillSchema> getSchemaOnDemand(final String schemaName, final long maxStalenessInMillis)
+    {
+        final GoodwillSchema schema = onDemandSchemata.get(schemaName);
+        final long now = System.currentTimeMillis();
+        if (schema != null) {
+            stats.recordHit();
+            final long staleness = onDemandSchemata.getStalenessInMillis(schemaName, now);
+            final boolean mustReload;
+            if (maxStalenessInMillis >= 0) {
+                mustReload = staleness > maxStalenessInMillis;
+            }
+            else {
+                mustReload = hardTtlInMillis > 0 && staleness > hardTtlInMillis;
+                if (!mustReload && softTtlInMillis > 0 && staleness > softTtlInMillis) {
+                    stats.recordStaleHit();
+                    // Concurrent reloads of the same schema are shared, see OnDemandSchemaCache#load
+                    onDemandSchemata.load(schemaName);
+                }
+            }
+            if (!mustReload) {
+                return Futures.immediateFuture(schema);
+            }
+
+            stats.recordStaleHit();
+            final ListenableFuture<GoodwillSchema> reload = onDemandSchemata.load(schemaName);
+            if (maxStalenessInMillis < 0) {
+                // If Goodwill couldn't be reached, the stale schema is returned
+                return reload;
+            }
+
+            final SettableFuture<GoodwillSchema> result = SettableFuture.create();
+            reload.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final long staleness = onDemandSchemata.getStalenessInMillis(schemaName, System.currentTimeMillis());
+                    result.set(staleness >= 0 && staleness <= maxStalenessInMillis ? onDemandSchemata.get(schemaName) : null);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+            return result;
+        }
+
+        if (unknownSchemata.contains(schemaName, now)) {
+            stats.recordNegativeHit();
+            return Futures.immediateFuture(null);
+        }
+
+        stats.recordMiss();
+        // Names Goodwill doesn't know are negatively cached by the load, failed loads aren't
+        return onDemandSchemata.load(schemaName);
+    }
+
+    private GoodwillSchema await(final ListenableFuture<GoodwillSchema> lookup, final String schemaName)
+    {
+        try {
+            return lookup.get();
+        }
+        catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for schema {}", schemaName);
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            log.warn("Unable to load schema {}: {}", schemaName, e.getLocalizedMessage());
+        }
+        return null;
+    }
+
+    /**
+     * The name is only remembered as unknown if Goodwill was asked about it: a successful refresh started after the
+     * miss. Names missing because the refresh was skipped (rate limited) or failed are looked up again next time.
+     */
+    private GoodwillSchema lookupAfterRefresh(final String schemaName, final long missTimeInMillis)
+    {
+        final GoodwillSchema schema = snapshot.getSchema(schemaName);
+        if (schema == null && confirmedAsOfInMillis >= missTimeInMillis) {
+            unknownSchemata.add(schemaName, missTimeInMillis);
+        }
         return schema;
     }
 
+    /**
+     * A miss can always join a refresh already in flight. Otherwise, starting a new one is subject
+     * to the minimum interval between two miss-triggered refreshes.
+     */
+    private boolean shouldRefreshOnMiss()
+    {
+        if (inFlightRefresh.get() != null || minMissRefreshIntervalInMillis <= 0) {
+            return true;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long last = lastMissRefreshInMillis.get();
+        return now - last >= minMissRefreshIntervalInMillis && lastMissRefreshInMillis.compareAndSet(last, now);
+    }
+
+    /**
+     * @return all the schemata, or the ones currently cached in ON_DEMAND mode
+     */
     public List<GoodwillSchema> getSchemata()
     {
-        return Collections.list(knownSchemata.elements());
+        if (onDemandSchemata != null) {
+            return new ArrayList<GoodwillSchema>(onDemandSchemata.getSchemata());
+        }
+        return new ArrayList<GoodwillSchema>(snapshot.getSchemata());
+    }
+
+    /**
+     * Get a consistent view of the cache. Subsequent refreshes don't affect the returned snapshot.
+     * <p/>
+     * Always empty in ON_DEMAND mode, see {@link #getSchemata()}.
+     *
+     * @return the current snapshot
+     */
+    public SchemataSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * @return statistics of this cache, and of the calls made to refresh it
+     */
+    public CachingGoodwillAccessorStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * @return state of the circuit breaker of the underlying accessor: while it is open, lookups are answered from
+     *         the cache only
+     */
+    public GoodwillCircuitState getCircuitState()
+    {
+        return delegate.getCircuitState();
+    }
+
+    boolean isSnapshotPublisher()
+    {
+        return sharedSnapshot != null && sharedSnapshot.isPublisher();
+    }
+
+    long getRefreshIntervalInMillis()
+    {
+        return refreshPolicy.getIntervalInMillis();
+    }
+
+    int getCachedSchemataCount()
+    {
+        return onDemandSchemata != null ? onDemandSchemata.size() : snapshot.size();
+    }
+
+    long getEstimatedCacheSizeInBytes()
+    {
+        return onDemandSchemata != null ? onDemandSchemata.estimateSizeInBytes() : snapshot.getEstimatedSizeInBytes();
+    }
+
+    int getNegativeCacheSize()
+    {
+        return unknownSchemata.size();
     }
 
     /**
-     * Close the underlying http client
+     * Stop the background refreshes and close the underlying http client, unless the accessor was provided by the caller
      */
     public synchronized void close()
     {
-        delegate.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        if (subscription != null) {
+            subscription.close();
+        }
+        RefreshScheduler.release();
+        if (snapshotFileExecutor != null) {
+            // The pending write, if any, still goes through
+            snapshotFileExecutor.shutdown();
+        }
+        if (sharedSnapshot != null) {
+            sharedSnapshot.close();
+        }
+
+        JmxSupport.unregister(jmxObjectName);
+        JmxSupport.unregister(httpJmxObjectName);
+        if (ownsDelegate) {
+            delegate.close();
+        }
     }
 }
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tuning knobs for the CachingGoodwillAccessor.
+ * <p/>
+ * Typical invocation:
+ * <pre>
+ * new CachingGoodwillAccessor(host, port, new CachingGoodwillAccessorConfig()
+ *     .setCacheTimeoutInSeconds(60)
+ *     .setNegativeCacheTtlInMillis(10000));
+ * </pre>
+ */
+public class CachingGoodwillAccessorConfig
+{
+    public static final int DEFAULT_CACHE_TIMEOUT_IN_SECONDS = 90;
+    public static final long DEFAULT_MIN_MISS_REFRESH_INTERVAL_IN_MILLIS = 0;
+    public static final long DEFAULT_NEGATIVE_CACHE_TTL_IN_MILLIS = 30000;
+    public static final int DEFAULT_NEGATIVE_CACHE_MAX_SIZE = 10000;
+    public static final int DEFAULT_MIN_REFRESH_INTERVAL_IN_SECONDS = -1;
+    public static final int DEFAULT_MAX_REFRESH_INTERVAL_IN_SECONDS = -1;
+    public static final double DEFAULT_REFRESH_BACKOFF_MULTIPLIER = 2.0;
+    public static final double DEFAULT_REFRESH_JITTER = 0.1;
+    public static final long DEFAULT_SOFT_TTL_IN_MILLIS = 0;
+    public static final long DEFAULT_HARD_TTL_IN_MILLIS = 0;
+    public static final long DEFAULT_REFRESH_PHASE_OFFSET_IN_MILLIS = 0;
+    public static final long RANDOM_REFRESH_PHASE_OFFSET = -1;
+    public static final LoadingMode DEFAULT_LOADING_MODE = LoadingMode.FULL;
+    public static final int DEFAULT_MAX_CACHED_SCHEMATA = 1000;
+    public static final long DEFAULT_SHARED_SNAPSHOT_CHECK_INTERVAL_IN_MILLIS = 1000;
+    public static final boolean DEFAULT_SUBSCRIPTION_ENABLED = false;
+    public static final int DEFAULT_SAFETY_NET_REFRESH_INTERVAL_IN_SECONDS = 600;
+
+    /**
+     * How the cache is populated
+     */
+    public enum LoadingMode
+    {
+        /**
+         * The whole registry is fetched and kept in memory
+         */
+        FULL,
+        /**
+         * Schemata are fetched one by one on first use, and the least used ones evicted past maxCachedSchemata
+         */
+        ON_DEMAND
+    }
+
+    private int cacheTimeoutInSeconds = DEFAULT_CACHE_TIMEOUT_IN_SECONDS;
+    private long minMissRefreshIntervalInMillis = DEFAULT_MIN_MISS_REFRESH_INTERVAL_IN_MILLIS;
+    private long negativeCacheTtlInMillis = DEFAULT_NEGATIVE_CACHE_TTL_IN_MILLIS;
+    private int negativeCacheMaxSize = DEFAULT_NEGATIVE_CACHE_MAX_SIZE;
+    private String jmxObjectName = null;
+    private int minRefreshIntervalInSeconds = DEFAULT_MIN_REFRESH_INTERVAL_IN_SECONDS;
+    private int maxRefreshIntervalInSeconds = DEFAULT_MAX_REFRESH_INTERVAL_IN_SECONDS;
+    private double refreshBackoffMultiplier = DEFAULT_REFRESH_BACKOFF_MULTIPLIER;
+    private double refreshJitter = DEFAULT_REFRESH_JITTER;
+    private long softTtlInMillis = DEFAULT_SOFT_TTL_IN_MILLIS;
+    private long hardTtlInMillis = DEFAULT_HARD_TTL_IN_MILLIS;
+    private long refreshPhaseOffsetInMillis = DEFAULT_REFRESH_PHASE_OFFSET_IN_MILLIS;
+    private LoadingMode loadingMode = DEFAULT_LOADING_MODE;
+    private int maxCachedSchemata = DEFAULT_MAX_CACHED_SCHEMATA;
+    private List<String> pinnedSchemata = Collections.emptyList();
+    private File snapshotFile = null;
+    private boolean snapshotFileShared = false;
+    private long sharedSnapshotCheckIntervalInMillis = DEFAULT_SHARED_SNAPSHOT_CHECK_INTERVAL_IN_MILLIS;
+    private boolean subscriptionEnabled = DEFAULT_SUBSCRIPTION_ENABLED;
+    private int safetyNetRefreshIntervalInSeconds = DEFAULT_SAFETY_NET_REFRESH_INTERVAL_IN_SECONDS;
+
+    public int getCacheTimeoutInSeconds()
+    {
+        return cacheTimeoutInSeconds;
+    }
+
+    /**
+     * @param cacheTimeoutInSeconds delay between two background refreshes, or initial delay if the refresh interval is adaptive
+     * @return this config
+     * @see #setMinRefreshIntervalInSeconds(int)
+     */
+    public CachingGoodwillAccessorConfig setCacheTimeoutInSeconds(final int cacheTimeoutInSeconds)
+    {
+        this.cacheTimeoutInSeconds = cacheTimeoutInSeconds;
+        return this;
+    }
+
+    public long getMinMissRefreshIntervalInMillis()
+    {
+        return minMissRefreshIntervalInMillis;
+    }
+
+    /**
+     * @param minMissRefreshIntervalInMillis minimum delay between two refreshes triggered by cache misses (0 for no limit)
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setMinMissRefreshIntervalInMillis(final long minMissRefreshIntervalInMillis)
+    {
+        this.minMissRefreshIntervalInMillis = minMissRefreshIntervalInMillis;
+        return this;
+    }
+
+    public long getNegativeCacheTtlInMillis()
+    {
+        return negativeCacheTtlInMillis;
+    }
+
+    /**
+     * @param negativeCacheTtlInMillis how long an unknown schema name is remembered as such (0 to disable)
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setNegativeCacheTtlInMillis(final long negativeCacheTtlInMillis)
+    {
+        this.negativeCacheTtlInMillis = negativeCacheTtlInMillis;
+        return this;
+    }
+
+    public int getNegativeCacheMaxSize()
+    {
+        return negativeCacheMaxSize;
+    }
+
+    /**
+     * @param negativeCacheMaxSize maximum number of unknown schema names remembered, oldest ones are dropped first
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setNegativeCacheMaxSize(final int negativeCacheMaxSize)
+    {
+        this.negativeCacheMaxSize = negativeCacheMaxSize;
+        return this;
+    }
+
+    public String getJmxObjectName()
+    {
+        return jmxObjectName;
+    }
+
+    /**
+     * @param jmxObjectName name to publish the cache statistics under over JMX (e.g. com.ning.metrics.goodwill:name=CachingGoodwillAccessor),
+     *                      null not to publish them. The name must be unique: if it is already in use, the statistics aren't published.
+     *                      The HTTP statistics of the underlying accessor, if created by the cache, are published under the same
+     *                      name with component=http appended
+     * @return this config
+     * @see CachingGoodwillAccessorStats
+     */
+    public CachingGoodwillAccessorConfig setJmxObjectName(final String jmxObjectName)
+    {
+        this.jmxObjectName = jmxObjectName;
+        return this;
+    }
+
+    public int getMinRefreshIntervalInSeconds()
+    {
+        return minRefreshIntervalInSeconds < 0 ? cacheTimeoutInSeconds : minRefreshIntervalInSeconds;
+    }
+
+    /**
+     * Make the refresh interval adaptive: it drops to this minimum after a change is detected, and backs off
+     * exponentially (see refreshBackoffMultiplier) up to maxRefreshIntervalInSeconds while nothing changes or
+     * Goodwill is failing.
+     * <p/>
+     * Both bounds default to cacheTimeoutInSeconds, i.e. a fixed interval.
+     *
+     * @param minRefreshIntervalInSeconds shortest delay between two background refreshes
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setMinRefreshIntervalInSeconds(final int minRefreshIntervalInSeconds)
+    {
+        this.minRefreshIntervalInSeconds = minRefreshIntervalInSeconds;
+        return this;
+    }
+
+    public int getMaxRefreshIntervalInSeconds()
+    {
+        return maxRefreshIntervalInSeconds < 0 ? cacheTimeoutInSeconds : maxRefreshIntervalInSeconds;
+    }
+
+    /**
+     * @param maxRefreshIntervalInSeconds longest delay between two background refreshes
+     * @return this config
+     * @see #setMinRefreshIntervalInSeconds(int)
+     */
+    public CachingGoodwillAccessorConfig setMaxRefreshIntervalInSeconds(final int maxRefreshIntervalInSeconds)
+    {
+        this.maxRefreshIntervalInSeconds = maxRefreshIntervalInSeconds;
+        return this;
+    }
+
+    public double getRefreshBackoffMultiplier()
+    {
+        return refreshBackoffMultiplier;
+    }
+
+    /**
+     * @param refreshBackoffMultiplier growth factor of the refresh interval, after each refresh which found no change or failed
+     * @return this config
+     * @see #setMinRefreshIntervalInSeconds(int)
+     */
+    public CachingGoodwillAccessorConfig setRefreshBackoffMultiplier(final double refreshBackoffMultiplier)
+    {
+        this.refreshBackoffMultiplier = refreshBackoffMultiplier;
+        return this;
+    }
+
+    public double getRefreshJitter()
+    {
+        return refreshJitter;
+    }
+
+    /**
+     * Spread the background refreshes of the fleet: each delay between two refreshes is drawn at random
+     * within the refresh interval, plus or minus this ratio of it.
+     *
+     * @param refreshJitter jitter, as a ratio of the refresh interval (between 0 for none and 1)
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setRefreshJitter(final double refreshJitter)
+    {
+        this.refreshJitter = refreshJitter;
+        return this;
+    }
+
+    public long getRefreshPhaseOffsetInMillis()
+    {
+        return refreshPhaseOffsetInMillis;
+    }
+
+    /**
+     * The cache is warmed up right away, the first background refresh happens cacheTimeoutInSeconds plus this
+     * offset later.
+     *
+     * @param refreshPhaseOffsetInMillis offset of the refresh schedule, RANDOM_REFRESH_PHASE_OFFSET for a random one
+     *                                   within cacheTimeoutInSeconds
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setRefreshPhaseOffsetInMillis(final long refreshPhaseOffsetInMillis)
+    {
+        this.refreshPhaseOffsetInMillis = refreshPhaseOffsetInMillis;
+        return this;
+    }
+
+    public long getSoftTtlInMillis()
+    {
+        return softTtlInMillis;
+    }
+
+    /**
+     * Schemata which Goodwill didn't confirm for longer than this are still returned right away, but trigger
+     * a revalidation of the cache in the background.
+     *
+     * @param softTtlInMillis soft time to live of the cached schemata (0 to rely on the background refreshes only)
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setSoftTtlInMillis(final long softTtlInMillis)
+    {
+        this.softTtlInMillis = softTtlInMillis;
+        return this;
+    }
+
+    public long getHardTtlInMillis()
+    {
+        return hardTtlInMillis;
+    }
+
+    /**
+     * Schemata which Goodwill didn't confirm for longer than this are only returned once the cache has been
+     * revalidated. If Goodwill can't be reached, the stale schema is returned nonetheless.
+     *
+     * @param hardTtlInMillis hard time to live of the cached schemata (0 for none)
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setHardTtlInMillis(final long hardTtlInMillis)
+    {
+        this.hardTtlInMillis = hardTtlInMillis;
+        return this;
+    }
+
+    public LoadingMode getLoadingMode()
+    {
+        return loadingMode;
+    }
+
+    /**
+     * Fetching the whole registry is wasteful for processes which only use a handful of schemata out of
+     * thousands: in ON_DEMAND mode, the background refreshes only reload the schemata in use.
+     *
+     * @param loadingMode how the cache is populated
+     * @return this config
+     * @see #setMaxCachedSchemata(int)
+     */
+    public CachingGoodwillAccessorConfig setLoadingMode(final LoadingMode loadingMode)
+    {
+        this.loadingMode = loadingMode;
+        return this;
+    }
+
+    public int getMaxCachedSchemata()
+    {
+        return maxCachedSchemata;
+    }
+
+    /**
+     * @param maxCachedSchemata maximum number of schemata kept in ON_DEMAND mode, pinned ones excluded
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setMaxCachedSchemata(final int maxCachedSchemata)
+    {
+        this.maxCachedSchemata = maxCachedSchemata;
+        return this;
+    }
+
+    public List<String> getPinnedSchemata()
+    {
+        return pinnedSchemata;
+    }
+
+    /**
+     * @param pinnedSchemata schemata fetched at startup and never evicted, in ON_DEMAND mode
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setPinnedSchemata(final Collection<String> pinnedSchemata)
+    {
+        this.pinnedSchemata = new ArrayList<String>(pinnedSchemata);
+        return this;
+    }
+
+    public File getSnapshotFile()
+    {
+        return snapshotFile;
+    }
+
+    /**
+     * Each new snapshot is saved to this file, and the cache starts from it: a restarting process can serve
+     * lookups right away, even if Goodwill is down. The first refresh then only asks Goodwill what changed.
+     * <p/>
+     * Ignored in ON_DEMAND mode.
+     *
+     * @param snapshotFile file to persist the schemata to, null to disable
+     * @return this config
+     * @see CachingGoodwillAccessor#awaitInitialLoad(long, java.util.concurrent.TimeUnit)
+     */
+    public CachingGoodwillAccessorConfig setSnapshotFile(final File snapshotFile)
+    {
+        this.snapshotFile = snapshotFile;
+        return this;
+    }
+
+    public boolean isSnapshotFileShared()
+    {
+        return snapshotFileShared;
+    }
+
+    /**
+     * Processes on the same host can share the snapshot file: only the one holding its lock (the file name plus
+     * ".lock") polls Goodwill and publishes the schemata, the others read them from the file. If it goes away,
+     * another one takes over.
+     * <p/>
+     * This saves calls to Goodwill, not memory: each process still decodes the schemata into its own heap.
+     *
+     * @param snapshotFileShared whether co-located processes share the snapshot file
+     * @return this config
+     * @see #setSnapshotFile(java.io.File)
+     * @see #setSharedSnapshotCheckIntervalInMillis(long)
+     */
+    public CachingGoodwillAccessorConfig setSnapshotFileShared(final boolean snapshotFileShared)
+    {
+        this.snapshotFileShared = snapshotFileShared;
+        return this;
+    }
+
+    public long getSharedSnapshotCheckIntervalInMillis()
+    {
+        return sharedSnapshotCheckIntervalInMillis;
+    }
+
+    /**
+     * @param sharedSnapshotCheckIntervalInMillis delay between two checks of the shared snapshot file, by the processes
+     *                                            not polling Goodwill
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setSharedSnapshotCheckIntervalInMillis(final long sharedSnapshotCheckIntervalInMillis)
+    {
+        this.sharedSnapshotCheckIntervalInMillis = sharedSnapshotCheckIntervalInMillis;
+        return this;
+    }
+
+    public boolean isSubscriptionEnabled()
+    {
+        return subscriptionEnabled;
+    }
+
+    /**
+     * Once a refresh returned a cursor, subscribe to the changes of the registry: they are applied as soon as
+     * Goodwill pushes them, and the background refreshes only run every safetyNetRefreshIntervalInSeconds.
+     * <p/>
+     * Requires a Goodwill server supporting incremental sync. Ignored in ON_DEMAND mode, and by the processes reading
+     * a shared snapshot file (the one publishing it subscribes).
+     *
+     * @param subscriptionEnabled whether to subscribe to the changes of the registry
+     * @return this config
+     * @see GoodwillAccessor#subscribe(String, GoodwillChangeListener)
+     */
+    public CachingGoodwillAccessorConfig setSubscriptionEnabled(final boolean subscriptionEnabled)
+    {
+        this.subscriptionEnabled = subscriptionEnabled;
+        return this;
+    }
+
+    public int getSafetyNetRefreshIntervalInSeconds()
+    {
+        return safetyNetRefreshIntervalInSeconds;
+    }
+
+    /**
+     * @param safetyNetRefreshIntervalInSeconds delay between two background refreshes, while subscribed to the changes
+     * @return this config
+     */
+    public CachingGoodwillAccessorConfig setSafetyNetRefreshIntervalInSeconds(final int safetyNetRefreshIntervalInSeconds)
+    {
+        this.safetyNetRefreshIntervalInSeconds = safetyNetRefreshIntervalInSeconds;
+        return this;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Statistics of a CachingGoodwillAccessor: lookups, refreshes and the state of the cache.
+ * <p/>
+ * Counters are cumulative since the accessor was created, gauges (snapshot age, staleness, size) are computed
+ * when read. Recording a hit is allocation-free and doesn't contend across threads. They can be published over
+ * JMX, see CachingGoodwillAccessorConfig#setJmxObjectName(String).
+ */
+public class CachingGoodwillAccessorStats implements CachingGoodwillAccessorStatsMBean
+{
+    private final CachingGoodwillAccessor accessor;
+    private final GoodwillAccessorStats httpStats;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter negativeHits = new StripedCounter();
+    private final StripedCounter staleHits = new StripedCounter();
+
+    private final StripedCounter scheduledRefreshes = new StripedCounter();
+    private final StripedCounter missRefreshes = new StripedCounter();
+    private final StripedCounter staleRefreshes = new StripedCounter();
+    private final StripedCounter explicitRefreshes = new StripedCounter();
+    private final StripedCounter pushRefreshes = new StripedCounter();
+    private final StripedCounter refreshesUpdated = new StripedCounter();
+    private final StripedCounter refreshesNotModified = new StripedCounter();
+    private final StripedCounter refreshFailures = new StripedCounter();
+    private final LatencyHistogram refreshLatency = new LatencyHistogram();
+
+    // Last time Goodwill confirmed the cache content, whether it changed or not
+    private volatile long lastValidationInMillis = 0;
+
+    CachingGoodwillAccessorStats(final CachingGoodwillAccessor accessor, final GoodwillAccessorStats httpStats)
+    {
+        this.accessor = accessor;
+        this.httpStats = httpStats;
+    }
+
+    void recordHit()
+    {
+        hits.increment();
+    }
+
+    void recordMiss()
+    {
+        misses.increment();
+    }
+
+    void recordNegativeHit()
+    {
+        negativeHits.increment();
+    }
+
+    void recordStaleHit()
+    {
+        staleHits.increment();
+    }
+
+    void recordScheduledRefresh()
+    {
+        scheduledRefreshes.increment();
+    }
+
+    void recordMissRefresh()
+    {
+        missRefreshes.increment();
+    }
+
+    void recordStaleRefresh()
+    {
+        staleRefreshes.increment();
+    }
+
+    void recordExplicitRefresh()
+    {
+        explicitRefreshes.increment();
+    }
+
+    void recordPushRefresh()
+    {
+        pushRefreshes.increment();
+    }
+
+    /**
+     * @param latencyInMillis duration of the refresh
+     * @param succeeded       whether Goodwill answered the refresh
+     * @param modified        whether the answer changed the cached schemata
+     */
+    void recordRefreshCompleted(final long latencyInMillis, final boolean succeeded, final boolean modified)
+    {
+        recordRefreshCompleted(latencyInMillis, succeeded, modified, System.currentTimeMillis());
+    }
+
+    /**
+     * @param latencyInMillis        duration of the refresh
+     * @param succeeded              whether Goodwill, or the shared snapshot file, answered the refresh
+     * @param modified               whether the answer changed the cached schemata
+     * @param validationTimeInMillis when Goodwill last confirmed the cached schemata
+     */
+    void recordRefreshCompleted(final long latencyInMillis, final boolean succeeded, final boolean modified, final long validationTimeInMillis)
+    {
+        refreshLatency.record(latencyInMillis);
+        if (!succeeded) {
+            refreshFailures.increment();
+            return;
+        }
+
+        if (modified) {
+            refreshesUpdated.increment();
+        }
+        else {
+            refreshesNotModified.increment();
+        }
+        if (validationTimeInMillis > lastValidationInMillis) {
+            lastValidationInMillis = validationTimeInMillis;
+        }
+    }
+
+    /**
+     * @return lookups answered from the cache
+     */
+    @Override
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups of names not in the cache (negative hits excluded)
+     */
+    @Override
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return lookups of names recently found missing, answered without refreshing the cache
+     */
+    @Override
+    public long getNegativeHits()
+    {
+        return negativeHits.sum();
+    }
+
+    /**
+     * @return hits on schemata past their soft or hard TTL, or the staleness asked by the caller
+     */
+    @Override
+    public long getStaleHits()
+    {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return refreshes started by the background refresher
+     */
+    @Override
+    public long getScheduledRefreshes()
+    {
+        return scheduledRefreshes.sum();
+    }
+
+    /**
+     * @return refreshes started by cache misses (misses joining a refresh already running are not counted)
+     */
+    @Override
+    public long getMissRefreshes()
+    {
+        return missRefreshes.sum();
+    }
+
+    /**
+     * @return refreshes started to revalidate stale schemata
+     */
+    @Override
+    public long getStaleRefreshes()
+    {
+        return staleRefreshes.sum();
+    }
+
+    /**
+     * @return refreshes started by refreshSchemataCache() or refreshAsync()
+     */
+    @Override
+    public long getExplicitRefreshes()
+    {
+        return explicitRefreshes.sum();
+    }
+
+    /**
+     * @return refreshes applying changes pushed by Goodwill, see CachingGoodwillAccessorConfig#setSubscriptionEnabled(boolean)
+     */
+    @Override
+    public long getPushRefreshes()
+    {
+        return pushRefreshes.sum();
+    }
+
+    /**
+     * @return refreshes which published a new snapshot
+     */
+    @Override
+    public long getRefreshesUpdated()
+    {
+        return refreshesUpdated.sum();
+    }
+
+    /**
+     * @return refreshes which found the cache up to date
+     */
+    @Override
+    public long getRefreshesNotModified()
+    {
+        return refreshesNotModified.sum();
+    }
+
+    /**
+     * @return refreshes which couldn't get the schemata, see the HTTP statistics for the causes
+     */
+    @Override
+    public long getRefreshFailures()
+    {
+        return refreshFailures.sum();
+    }
+
+    public LatencyHistogram getRefreshLatency()
+    {
+        return refreshLatency;
+    }
+
+    @Override
+    public double getRefreshLatencyMeanInMillis()
+    {
+        return refreshLatency.getMeanInMillis();
+    }
+
+    @Override
+    public long getRefreshLatency99thPercentileInMillis()
+    {
+        return refreshLatency.getPercentileInMillis(0.99);
+    }
+
+    @Override
+    public long getRefreshLatencyMaxInMillis()
+    {
+        return refreshLatency.getMaxInMillis();
+    }
+
+    /**
+     * @return current delay between two background refreshes, before jitter
+     */
+    @Override
+    public long getRefreshIntervalInMillis()
+    {
+        return accessor.getRefreshIntervalInMillis();
+    }
+
+    @Override
+    public long getSnapshotGeneration()
+    {
+        return accessor.getSnapshot().getGeneration();
+    }
+
+    /**
+     * @return true if this process polls Goodwill on behalf of the ones sharing its snapshot file
+     */
+    @Override
+    public boolean isSnapshotPublisher()
+    {
+        return accessor.isSnapshotPublisher();
+    }
+
+    /**
+     * @return time since the schemata last changed, -1 if they were never loaded
+     */
+    @Override
+    public long getSnapshotAgeInMillis()
+    {
+        final long creationTimeInMillis = accessor.getSnapshot().getCreationTimeInMillis();
+        return creationTimeInMillis == 0 ? -1 : System.currentTimeMillis() - creationTimeInMillis;
+    }
+
+    /**
+     * @return time since Goodwill last confirmed the content of the cache, -1 if it never did
+     */
+    @Override
+    public long getStalenessInMillis()
+    {
+        final long validationInMillis = lastValidationInMillis;
+        return validationInMillis == 0 ? -1 : System.currentTimeMillis() - validationInMillis;
+    }
+
+    @Override
+    public int getCachedSchemata()
+    {
+        return accessor.getCachedSchemataCount();
+    }
+
+    /**
+     * @see SchemataSnapshot#getEstimatedSizeInBytes()
+     */
+    @Override
+    public long getEstimatedRetainedSizeInBytes()
+    {
+        return accessor.getEstimatedCacheSizeInBytes();
+    }
+
+    @Override
+    public int getNegativeCacheSize()
+    {
+        return accessor.getNegativeCacheSize();
+    }
+
+    /**
+     * @return statistics of the HTTP calls made to refresh the cache, published over JMX next to these ones (as
+     *         component=http) when the accessor making them was created by the CachingGoodwillAccessor
+     */
+    public GoodwillAccessorStats getHttpStats()
+    {
+        return httpStats;
+    }
+}
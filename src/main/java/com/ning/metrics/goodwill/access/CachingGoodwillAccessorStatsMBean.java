@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * JMX view of the CachingGoodwillAccessor statistics. The ones of the underlying GoodwillAccessor are a separate MBean.
+ *
+ * @see CachingGoodwillAccessorStats
+ */
+public interface CachingGoodwillAccessorStatsMBean
+{
+    long getHits();
+
+    long getMisses();
+
+    long getNegativeHits();
+
+    long getStaleHits();
+
+    long getScheduledRefreshes();
+
+    long getMissRefreshes();
+
+    long getStaleRefreshes();
+
+    long getExplicitRefreshes();
+
+    long getPushRefreshes();
+
+    long getRefreshesUpdated();
+
+    long getRefreshesNotModified();
+
+    long getRefreshFailures();
+
+    double getRefreshLatencyMeanInMillis();
+
+    long getRefreshLatency99thPercentileInMillis();
+
+    long getRefreshLatencyMaxInMillis();
+
+    long getRefreshIntervalInMillis();
+
+    long getSnapshotGeneration();
+
+    boolean isSnapshotPublisher();
+
+    long getSnapshotAgeInMillis();
+
+    long getStalenessInMillis();
+
+    int getCachedSchemata();
+
+    long getEstimatedRetainedSizeInBytes();
+
+    int getNegativeCacheSize();
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the calls to Goodwill while it is failing, so that callers don't pile up behind dead connections.
+ * <p/>
+ * The circuit opens after failureThreshold consecutive failures (transport failures, timeouts, 5xx statuses, or
+ * calls slower than the slow call threshold). While it is open, calls fail right away. After openDurationInMillis,
+ * a single probe is sent from the shared scheduler thread: the circuit closes if it succeeds, and stays open for
+ * another openDurationInMillis otherwise.
+ * <p/>
+ * The scheduler is only held while the circuit is open.
+ */
+abstract class CircuitBreaker
+{
+    private final int failureThreshold;
+    private final long slowCallThresholdInNanos;
+    private final long openDurationInMillis;
+
+    private volatile GoodwillCircuitState state = GoodwillCircuitState.CLOSED;
+    private int consecutiveFailures = 0;
+    private ScheduledExecutorService scheduler = null;
+    private boolean shutdown = false;
+
+    private final Runnable probeTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            runProbe();
+        }
+    };
+
+    /**
+     * @param failureThreshold      consecutive failures opening the circuit, 0 to disable the breaker
+     * @param slowCallThresholdInMs calls slower than this count as failures, 0 to ignore the latency
+     * @param openDurationInMillis  delay before probing Goodwill, once the circuit is open
+     */
+    CircuitBreaker(final int failureThreshold, final long slowCallThresholdInMs, final long openDurationInMillis)
+    {
+        this.failureThreshold = failureThreshold;
+        this.slowCallThresholdInNanos = TimeUnit.MILLISECONDS.toNanos(slowCallThresholdInMs);
+        this.openDurationInMillis = openDurationInMillis;
+    }
+
+    /**
+     * Call Goodwill, bypassing the breaker
+     *
+     * @return a future failing if Goodwill is still unhealthy
+     */
+    protected abstract ListenableFuture<?> probe();
+
+    GoodwillCircuitState getState()
+    {
+        return state;
+    }
+
+    boolean allowRequest()
+    {
+        return state == GoodwillCircuitState.CLOSED;
+    }
+
+    /**
+     * @return whether the breaker needs the latency of the calls
+     */
+    boolean isLatencyAware()
+    {
+        return failureThreshold > 0 && slowCallThresholdInNanos > 0;
+    }
+
+    /**
+     * @param succeeded      whether Goodwill answered, with a status other than 5xx
+     * @param latencyInNanos time to get the response, if isLatencyAware()
+     */
+    void onCallCompleted(final boolean succeeded, final long latencyInNanos)
+    {
+        if (failureThreshold <= 0) {
+            return;
+        }
+
+        final boolean healthy = succeeded && (slowCallThresholdInNanos <= 0 || latencyInNanos <= slowCallThresholdInNanos);
+        synchronized (this) {
+            if (state != GoodwillCircuitState.CLOSED) {
+                return;
+            }
+            if (healthy) {
+                consecutiveFailures = 0;
+                return;
+            }
+            if (++consecutiveFailures >= failureThreshold) {
+                Accessor.log.warn("Goodwill failed {} times in a row, failing calls for the next {} ms", consecutiveFailures, openDurationInMillis);
+                open();
+            }
+        }
+    }
+
+    // Must hold the lock
+    private void open()
+    {
+        if (shutdown) {
+            return;
+        }
+
+        state = GoodwillCircuitState.OPEN;
+        if (scheduler == null) {
+            scheduler = RefreshScheduler.acquire();
+        }
+        scheduler.schedule(probeTask, openDurationInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runProbe()
+    {
+        synchronized (this) {
+            if (shutdown || state != GoodwillCircuitState.OPEN) {
+                return;
+            }
+            state = GoodwillCircuitState.HALF_OPEN;
+        }
+
+        final ListenableFuture<?> probe;
+        try {
+            probe = probe();
+        }
+        catch (RuntimeException e) {
+            onProbeCompleted(false);
+            return;
+        }
+
+        probe.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean healthy = false;
+                try {
+                    probe.get();
+                    healthy = true;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException ignored) {
+                    // Still unhealthy
+                }
+                onProbeCompleted(healthy);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private synchronized void onProbeCompleted(final boolean healthy)
+    {
+        if (shutdown) {
+            return;
+        }
+        if (!healthy) {
+            open();
+            return;
+        }
+
+        Accessor.log.info("Goodwill recovered, closing the circuit");
+        state = GoodwillCircuitState.CLOSED;
+        consecutiveFailures = 0;
+        RefreshScheduler.release();
+        scheduler = null;
+    }
+
+    /**
+     * Stop probing, and give the scheduler back
+     */
+    synchronized void shutdown()
+    {
+        shutdown = true;
+        if (scheduler != null) {
+            RefreshScheduler.release();
+            scheduler = null;
+        }
+    }
+}
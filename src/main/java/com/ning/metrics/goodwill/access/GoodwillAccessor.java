@@ -19,26 +19,202 @@ package com.ning.metrics.goodwill.access;
 import com.ning.http.client.AsyncCompletionHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
 import com.ning.http.client.Response;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.mogwee.executors.Executors;
 
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GoodwillAccessor extends Accessor
 {
     protected static final ObjectMapper mapper = new ObjectMapper();
+    private static final SchemataParser schemataParser = new SchemataParser(mapper);
+    // Calls are only hedged once the latency distribution is known
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    // The hedge delay is recomputed periodically, older latencies weigh half as much after each window of samples
+    private static final long HEDGE_DELAY_UPDATE_INTERVAL_IN_MS = 1000;
+    private static final long HEDGE_WINDOW_SAMPLES = 1000;
+    // Looked up by the circuit breaker probes: any answer but a 5xx means Goodwill is back
+    private static final String PROBE_SCHEMA_NAME = "goodwill-access-probe";
+
     protected AsyncHttpClient client;
+    private final boolean ownsClient;
+    private final RequestLimiter limiter;
+    private final ExecutorService limiterExecutor;
+    private final long maxPayloadSizeInBytes;
+    private final Executor decodeExecutor;
+    private final ExecutorService ownedDecodeExecutor;
+    private final int maxParallelLookups;
+    private final int maxNamesPerBulkLookup;
+    // Cleared once the server rejected a bulk lookup
+    private volatile boolean bulkLookupsSupported;
+
+    // Replicas to spread the calls across, by observed latency
+    private final ReplicaSelector replicas;
+    private final boolean latencyAware;
+
+    // Hedged calls, null if disabled: the shared scheduler sends them after a percentile of the observed latency
+    private final ScheduledExecutorService hedgeScheduler;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final double hedgeQuantile;
+    private final long minHedgeDelayInMs;
+    private final ScheduledFuture<?> hedgeDelayUpdater;
+    // -1 until the latency distribution is known
+    private volatile long hedgeDelayInMillis = -1;
+    // Only accessed by the hedge delay updater
+    private long samplesAtLastDecay = 0;
+
+    private final CircuitBreaker breaker;
+
+    // Open subscriptions, closed with the accessor
+    private final Set<Subscription> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+    private final long longPollWaitInMs;
+    private final long subscriptionMinBackoffInMs;
+    private final long subscriptionMaxBackoffInMs;
+
+    private final GoodwillAccessorStats stats;
+    private final List<GoodwillRequestListener> listeners = new CopyOnWriteArrayList<GoodwillRequestListener>();
+    private final ObjectName jmxObjectName;
+    private volatile boolean closed = false;
 
     public GoodwillAccessor(final String host, final int port)
+    {
+        this(host, port, new GoodwillAccessorConfig());
+    }
+
+    public GoodwillAccessor(final String host, final int port, final GoodwillAccessorConfig config)
+    {
+        this(host, port, Collections.singletonList(getRegistrarUrl(host, port)), config);
+    }
+
+    /**
+     * Spread the calls across several Goodwill replicas, favoring the ones answering the fastest.
+     *
+     * @param replicas replicas, as host:port
+     * @param config   accessor configuration
+     * @see GoodwillAccessorConfig#setHedgeQuantile(double)
+     */
+    public GoodwillAccessor(final List<String> replicas, final GoodwillAccessorConfig config)
+    {
+        this(getHost(replicas.get(0)), getPort(replicas.get(0)), getRegistrarUrls(replicas), config);
+    }
+
+    private GoodwillAccessor(final String host, final int port, final List<String> registrarUrls, final GoodwillAccessorConfig config)
     {
         super(host, port);
-        client = createHttpClient();
+        maxPayloadSizeInBytes = config.getMaxPayloadSizeInBytes();
+        if (config.getHttpClient() != null) {
+            client = config.getHttpClient();
+            ownsClient = false;
+        }
+        else {
+            client = createHttpClient(config);
+            ownsClient = true;
+        }
+        limiterExecutor = config.getMaxInFlightRequests() > 0 ? Executors.newSingleThreadExecutor("GoodwillRequestSender") : null;
+        limiter = new RequestLimiter(config.getMaxInFlightRequests(), limiterExecutor);
+        maxParallelLookups = Math.max(1, config.getMaxParallelLookups());
+        maxNamesPerBulkLookup = Math.max(1, config.getMaxNamesPerBulkLookup());
+        bulkLookupsSupported = config.isBulkLookupsEnabled();
+
+        // Keep (potentially large) responses from being parsed on the http client I/O threads
+        if (config.getDecodeExecutor() != null) {
+            decodeExecutor = config.getDecodeExecutor();
+            ownedDecodeExecutor = null;
+        }
+        else {
+            ownedDecodeExecutor = Executors.newFixedThreadPool(config.getDecodeThreads(), "GoodwillDecoder");
+            decodeExecutor = ownedDecodeExecutor;
+        }
+
+        replicas = new ReplicaSelector(registrarUrls);
+        hedgeQuantile = config.getHedgeQuantile();
+        minHedgeDelayInMs = config.getMinHedgeDelayInMs();
+        hedgeScheduler = hedgeQuantile > 0 ? RefreshScheduler.acquire() : null;
+        if (hedgeScheduler != null) {
+            hedgeDelayUpdater = hedgeScheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    decayLatencies();
+                    updateHedgeDelay();
+                }
+            }, HEDGE_DELAY_UPDATE_INTERVAL_IN_MS, HEDGE_DELAY_UPDATE_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+        }
+        else {
+            hedgeDelayUpdater = null;
+        }
+        breaker = new CircuitBreaker(config.getCircuitBreakerFailureThreshold(), config.getSlowCallThresholdInMs(), config.getCircuitBreakerOpenDurationInMs())
+        {
+            @Override
+            protected ListenableFuture<?> probe()
+            {
+                return GoodwillAccessor.this.probe();
+            }
+        };
+        latencyAware = replicas.size() > 1 || hedgeScheduler != null || breaker.isLatencyAware();
+        longPollWaitInMs = Math.max(0, Math.min(config.getLongPollWaitInMs(), config.getRequestTimeoutInMs() / 2));
+        subscriptionMinBackoffInMs = Math.max(1, config.getSubscriptionMinBackoffInMs());
+        subscriptionMaxBackoffInMs = Math.max(subscriptionMinBackoffInMs, config.getSubscriptionMaxBackoffInMs());
+        stats = new GoodwillAccessorStats(breaker);
+
+        // Last: JMX clients can read the statistics, hence this accessor, as soon as they are registered
+        jmxObjectName = JmxSupport.register(stats, config.getJmxObjectName());
+    }
+
+    private static String getHost(final String replica)
+    {
+        final int separator = replica.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException(String.format("Expected host:port, got %s", replica));
+        }
+        return replica.substring(0, separator);
+    }
+
+    private static int getPort(final String replica)
+    {
+        return Integer.parseInt(replica.substring(replica.lastIndexOf(':') + 1));
+    }
+
+    private static List<String> getRegistrarUrls(final List<String> replicas)
+    {
+        final List<String> registrarUrls = new ArrayList<String>(replicas.size());
+        for (final String replica : replicas) {
+            registrarUrls.add(getRegistrarUrl(getHost(replica), getPort(replica)));
+        }
+        return registrarUrls;
     }
 
     /**
@@ -54,41 +230,219 @@ public class GoodwillAccessor extends Accessor
      *   // Connection exception? Goodwill server down?
      * }
      * </pre>
+     * The returned future can also be composed, via {@link ListenableFuture#addListener(Runnable, java.util.concurrent.Executor)}.
      *
      * @param schemaName schema name to lookup
-     * @return a future on the Schema
+     * @return a future on the Schema, null if it doesn't exist. The future fails if Goodwill couldn't be reached
+     *         or returned an error, and right away with a GoodwillUnavailableException if the circuit breaker is open
+     * @see #getCircuitState()
      */
-    public Future<GoodwillSchema> getSchema(final String schemaName)
+    public ListenableFuture<GoodwillSchema> getSchema(final String schemaName)
     {
-        try {
-            return client.prepareGet(String.format("%s/%s", url, schemaName)).addHeader("Accept", "application/json").execute(new AsyncCompletionHandler<GoodwillSchema>()
+        return execute(new Call<GoodwillSchema>("getSchema")
+        {
+            @Override
+            protected String getRequestUrl(final String registrarUrl)
             {
-                @Override
-                public GoodwillSchema onCompleted(final Response response) throws Exception
+                return String.format("%s/%s", registrarUrl, schemaName);
+            }
+
+            @Override
+            protected GoodwillSchema onResponse(final Response response) throws Exception
+            {
+                if (response.getStatusCode() == 404) {
+                    return null;
+                }
+                checkStatus(response);
+
+                final InputStream in = response.getResponseBodyAsStream();
+                try {
+                    return mapper.readValue(in, GoodwillSchema.class);
+                }
+                finally {
+                    closeStream(in);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the Goodwill schemata associated to several schema names, e.g. the ones a service needs at startup.
+     * <p/>
+     * Up to maxParallelLookups calls are issued concurrently, over the pooled connections of the http client. If
+     * bulk lookups are enabled, each call asks for up to maxNamesPerBulkLookup schemata at once.
+     *
+     * @param schemaNames schema names to lookup
+     * @return a future on the schemata found, by name. Unknown names are absent from the map. The future fails if
+     *         Goodwill couldn't be reached or returned an error for any of the lookups
+     * @see GoodwillAccessorConfig#setMaxParallelLookups(int)
+     * @see GoodwillAccessorConfig#setBulkLookupsEnabled(boolean)
+     */
+    public ListenableFuture<Map<String, GoodwillSchema>> getSchemas(final Collection<String> schemaNames)
+    {
+        final MultiGet multiGet = new MultiGet(new ArrayList<String>(new LinkedHashSet<String>(schemaNames)));
+        multiGet.schedule();
+        return multiGet.future;
+    }
+
+    /**
+     * @return a future on the schemata found, null if the server doesn't support bulk lookups
+     */
+    private ListenableFuture<List<GoodwillSchema>> getSchemasInBulk(final List<String> schemaNames)
+    {
+        return execute(new Call<List<GoodwillSchema>>("getSchemas")
+        {
+            @Override
+            protected AsyncHttpClient.BoundRequestBuilder prepare(final String requestUrl)
+            {
+                final AsyncHttpClient.BoundRequestBuilder request = super.prepare(requestUrl);
+                for (final String schemaName : schemaNames) {
+                    request.addQueryParameter("name", schemaName);
+                }
+                return request;
+            }
+
+            @Override
+            protected List<GoodwillSchema> onResponse(final Response response) throws Exception
+            {
+                final int statusCode = response.getStatusCode();
+                if (statusCode == 400 || statusCode == 404 || statusCode == 405 || statusCode == 501) {
+                    return null;
+                }
+                checkStatus(response);
+
+                // Servers ignoring the name parameter return the whole registry
+                final Set<String> requested = new HashSet<String>(schemaNames);
+                final List<GoodwillSchema> schemata = new ArrayList<GoodwillSchema>(schemaNames.size());
+                for (final GoodwillSchema schema : readSchemata(response).getSchemata()) {
+                    if (requested.contains(schema.getName())) {
+                        schemata.add(schema);
+                    }
+                }
+                return schemata;
+            }
+        });
+    }
+
+    /**
+     * Lookups of a getSchemas call, split in batches (of one name, unless bulk lookups are supported) and
+     * fetched at most maxParallelLookups at a time
+     */
+    private final class MultiGet
+    {
+        private final SettableFuture<Map<String, GoodwillSchema>> future = SettableFuture.create();
+        private final Map<String, GoodwillSchema> schemata = new ConcurrentHashMap<String, GoodwillSchema>();
+        private final Deque<List<String>> batches = new ArrayDeque<List<String>>();
+        private int running = 0;
+        private boolean failed = false;
+
+        private MultiGet(final List<String> schemaNames)
+        {
+            final int batchSize = bulkLookupsSupported ? maxNamesPerBulkLookup : 1;
+            for (int i = 0; i < schemaNames.size(); i += batchSize) {
+                batches.add(schemaNames.subList(i, Math.min(schemaNames.size(), i + batchSize)));
+            }
+        }
+
+        private void schedule()
+        {
+            final List<List<String>> next = new ArrayList<List<String>>();
+            final boolean done;
+            synchronized (this) {
+                if (failed) {
+                    return;
+                }
+                while (running < maxParallelLookups && !batches.isEmpty()) {
+                    next.add(batches.poll());
+                    running++;
+                }
+                done = running == 0;
+            }
+
+            if (done) {
+                future.set(Collections.unmodifiableMap(schemata));
+                return;
+            }
+            for (final List<String> batch : next) {
+                fetch(batch);
+            }
+        }
+
+        private void fetch(final List<String> batch)
+        {
+            if (batch.size() == 1) {
+                final String schemaName = batch.get(0);
+                final ListenableFuture<GoodwillSchema> lookup = getSchema(schemaName);
+                lookup.addListener(new Runnable()
                 {
-                    if (response.getStatusCode() != 200) {
-                        return null;
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            final GoodwillSchema schema = lookup.get();
+                            if (schema != null) {
+                                schemata.put(schemaName, schema);
+                            }
+                            onBatchCompleted(null);
+                        }
+                        catch (Exception e) {
+                            onBatchCompleted(e);
+                        }
                     }
+                }, MoreExecutors.sameThreadExecutor());
+                return;
+            }
 
-                    final InputStream in = response.getResponseBodyAsStream();
+            final ListenableFuture<List<GoodwillSchema>> lookup = getSchemasInBulk(batch);
+            lookup.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
                     try {
-                        return mapper.readValue(in, GoodwillSchema.class);
+                        final List<GoodwillSchema> found = lookup.get();
+                        if (found == null) {
+                            log.info("Goodwill doesn't support bulk lookups, falling back to one call per schema");
+                            bulkLookupsSupported = false;
+                            synchronized (MultiGet.this) {
+                                for (final String schemaName : batch) {
+                                    batches.add(Collections.singletonList(schemaName));
+                                }
+                            }
+                        }
+                        else {
+                            for (final GoodwillSchema schema : found) {
+                                schemata.put(schema.getName(), schema);
+                            }
+                        }
+                        onBatchCompleted(null);
                     }
-                    finally {
-                        closeStream(in);
+                    catch (Exception e) {
+                        onBatchCompleted(e);
                     }
                 }
+            }, MoreExecutors.sameThreadExecutor());
+        }
 
-                @Override
-                public void onThrowable(final Throwable t)
-                {
-                    log.warn("Got exception looking up the schema", t);
+        private void onBatchCompleted(final Exception failure)
+        {
+            if (failure == null) {
+                synchronized (this) {
+                    running--;
                 }
-            });
-        }
-        catch (IOException e) {
-            log.warn("Got exception looking up the schema", e);
-            return null;
+                schedule();
+                return;
+            }
+
+            // Fail fast: the remaining batches are not fetched
+            synchronized (this) {
+                running--;
+                if (failed) {
+                    return;
+                }
+                failed = true;
+            }
+            future.setException(failure instanceof ExecutionException ? failure.getCause() : failure);
         }
     }
 
@@ -97,63 +451,1025 @@ public class GoodwillAccessor extends Accessor
      * <p/>
      * Use schemata, instead of schemas, which is closer to the original σχήματα.
      *
-     * @return a future on a list of Schema
+     * @return a future on a list of Schema. The future fails if Goodwill couldn't be reached or returned an error
      * @see #getSchema(String) for an invocation example
      */
-    public Future<List<GoodwillSchema>> getSchemata()
+    public ListenableFuture<List<GoodwillSchema>> getSchemata()
+    {
+        return execute(new Call<List<GoodwillSchema>>("getSchemata")
+        {
+            @Override
+            protected List<GoodwillSchema> onResponse(final Response response) throws Exception
+            {
+                checkStatus(response);
+                return readSchemata(response).getSchemata();
+            }
+        });
+    }
+
+    /**
+     * Get all schemata, handing them one by one to a consumer as they are decoded.
+     * <p/>
+     * Unlike {@link #getSchemata()}, the schemata are never all held in memory at once, which makes this method
+     * suitable for very large registries.
+     *
+     * @param consumer callback receiving each schema
+     * @return a future on the number of schemata decoded. The future fails if Goodwill couldn't be reached or
+     *         returned an error
+     */
+    public ListenableFuture<Integer> getSchemata(final GoodwillSchemaConsumer consumer)
+    {
+        return execute(new Call<Integer>("getSchemata")
+        {
+            @Override
+            protected Integer onResponse(final Response response) throws Exception
+            {
+                checkStatus(response);
+
+                final AtomicInteger count = new AtomicInteger(0);
+                readSchemata(response, new GoodwillSchemaConsumer()
+                {
+                    @Override
+                    public void accept(final GoodwillSchema schema)
+                    {
+                        count.incrementAndGet();
+                        consumer.accept(schema);
+                    }
+                });
+                return count.get();
+            }
+        });
+    }
+
+    /**
+     * Get all schemata, unless they didn't change since a previous listing.
+     * <p/>
+     * The validators are sent as If-None-Match and If-Modified-Since headers. If Goodwill answers 304 Not Modified,
+     * the body is neither transferred nor parsed and the response is flagged as not modified.
+     *
+     * @param eTag         ETag returned by the previous listing, null if unknown
+     * @param lastModified Last-Modified date returned by the previous listing, null if unknown
+     * @return a future on the listing. The future fails if Goodwill couldn't be reached or returned an error
+     * @see SchemataResponse#isModified()
+     */
+    public ListenableFuture<SchemataResponse> getSchemataIfModified(final String eTag, final String lastModified)
     {
+        return execute(new Call<SchemataResponse>("getSchemataIfModified")
+        {
+            @Override
+            protected AsyncHttpClient.BoundRequestBuilder prepare(final String requestUrl)
+            {
+                final AsyncHttpClient.BoundRequestBuilder request = super.prepare(requestUrl);
+                if (eTag != null) {
+                    request.addHeader("If-None-Match", eTag);
+                }
+                if (lastModified != null) {
+                    request.addHeader("If-Modified-Since", lastModified);
+                }
+                return request;
+            }
+
+            @Override
+            protected SchemataResponse onResponse(final Response response) throws Exception
+            {
+                if (response.getStatusCode() == 304) {
+                    return SchemataResponse.notModified(eTag, lastModified);
+                }
+                checkStatus(response);
+
+                return readSchemata(response);
+            }
+        });
+    }
+
+    /**
+     * Get the schemata added, modified or removed since a previous listing.
+     * <p/>
+     * The cursor is sent as the since query parameter. Goodwill servers which don't support incremental sync
+     * ignore it and return the full listing, which is flagged as such.
+     *
+     * @param cursor cursor returned by a previous listing
+     * @return a future on the changes (or the full listing). The future fails if Goodwill couldn't be reached
+     *         or couldn't serve them, e.g. because the cursor expired
+     * @see SchemataResponse#isDelta()
+     */
+    public ListenableFuture<SchemataResponse> getSchemataSince(final String cursor)
+    {
+        return execute(new Call<SchemataResponse>("getSchemataSince")
+        {
+            @Override
+            protected AsyncHttpClient.BoundRequestBuilder prepare(final String requestUrl)
+            {
+                return super.prepare(requestUrl).addQueryParameter("since", cursor);
+            }
+
+            @Override
+            protected SchemataResponse onResponse(final Response response) throws Exception
+            {
+                checkStatus(response);
+                return readSchemata(response);
+            }
+        });
+    }
+
+    /**
+     * Subscribe to the changes of the registry, instead of polling for them.
+     * <p/>
+     * The subscription long-polls /registrar?since=cursor&amp;wait=longPollWaitInMs: Goodwill holds the request until
+     * the registry changes, or answers 304 Not Modified once the wait elapsed. Servers which don't hold requests
+     * answer right away: the subscription then polls them every subscriptionMinBackoffInMs. Transport errors, 5xx,
+     * 408 and 429 answers trigger reconnections from the last cursor seen, with an exponential backoff. Other errors
+     * end the subscription, see {@link GoodwillChangeListener#onSubscriptionEnded(Throwable)}.
+     * <p/>
+     * Each subscription holds one of the maxInFlightRequests slots while its request is open.
+     *
+     * @param cursor   cursor of the listing the subscriber is up to date with
+     * @param listener notified of the changes
+     * @return the subscription, to close once done
+     * @see GoodwillAccessorConfig#setLongPollWaitInMs(long)
+     */
+    public GoodwillSubscription subscribe(final String cursor, final GoodwillChangeListener listener)
+    {
+        final Subscription subscription;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The accessor is closed");
+            }
+            subscription = new Subscription(cursor, listener);
+            subscriptions.add(subscription);
+        }
+        subscription.poll();
+        return subscription;
+    }
+
+    private ListenableFuture<SchemataResponse> pollChanges(final String cursor)
+    {
+        return execute(new Call<SchemataResponse>("subscribe", false, true)
+        {
+            @Override
+            protected AsyncHttpClient.BoundRequestBuilder prepare(final String requestUrl)
+            {
+                return super.prepare(requestUrl)
+                    .addQueryParameter("since", cursor)
+                    .addQueryParameter("wait", String.valueOf(longPollWaitInMs));
+            }
+
+            @Override
+            protected SchemataResponse onResponse(final Response response) throws Exception
+            {
+                if (response.getStatusCode() == 304) {
+                    return SchemataResponse.notModified(null, null);
+                }
+                checkStatus(response);
+                return readSchemata(response);
+            }
+        });
+    }
+
+    /**
+     * Chain of long-polls: the next one is sent once the previous one completed, at most one is in flight
+     */
+    private final class Subscription implements GoodwillSubscription
+    {
+        private final GoodwillChangeListener listener;
+        private final ScheduledExecutorService scheduler = RefreshScheduler.acquire();
+        private final Random random = new Random();
+        private volatile String cursor;
+        private volatile ListenableFuture<SchemataResponse> inFlight = null;
+        private volatile boolean closed = false;
+        // Only used by the chain of polls
+        private long backoffInMillis = 0;
+
+        private final Runnable scheduledPoll = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                poll();
+            }
+        };
+
+        private Subscription(final String cursor, final GoodwillChangeListener listener)
+        {
+            this.cursor = cursor;
+            this.listener = listener;
+        }
+
+        private void poll()
+        {
+            if (closed) {
+                return;
+            }
+
+            final String since = cursor;
+            final long startedAtInMillis = System.currentTimeMillis();
+            final ListenableFuture<SchemataResponse> changes = pollChanges(since);
+            inFlight = changes;
+            if (closed) {
+                // Closed in the meantime, and may have missed this poll
+                changes.cancel(true);
+                return;
+            }
+
+            changes.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onPollCompleted(since, changes, startedAtInMillis);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private void onPollCompleted(final String since, final ListenableFuture<SchemataResponse> changes, final long startedAtInMillis)
+        {
+            if (closed || changes.isCancelled()) {
+                return;
+            }
+
+            final SchemataResponse response;
+            try {
+                response = changes.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                onPollFailed(e.getCause());
+                return;
+            }
+
+            backoffInMillis = 0;
+            if (response.getCursor() != null) {
+                cursor = response.getCursor();
+            }
+
+            final boolean changed = response.isModified() &&
+                (!response.isDelta() || !response.getSchemata().isEmpty() || !response.getRemovedSchemata().isEmpty());
+            // Goodwill may move the cursor forward without changes, e.g. past the ones which cancelled each other
+            final boolean cursorMoved = response.getCursor() != null && !response.getCursor().equals(since);
+            if (changed) {
+                stats.recordSubscriptionEvent();
+            }
+            if (changed || cursorMoved) {
+                try {
+                    listener.onChanges(since, response);
+                }
+                catch (RuntimeException e) {
+                    log.warn("Subscription listener failed", e);
+                }
+            }
+
+            if (response.isModified() && response.getCursor() == null) {
+                end(new IOException("Goodwill doesn't support incremental sync"));
+            }
+            else if (changed) {
+                schedule(0);
+            }
+            else {
+                // Goodwill may not hold the requests: don't spin
+                schedule(Math.max(0, subscriptionMinBackoffInMs - (System.currentTimeMillis() - startedAtInMillis)));
+            }
+        }
+
+        private void onPollFailed(final Throwable cause)
+        {
+            if (cause instanceof UnexpectedStatusException && !isRetryable(((UnexpectedStatusException) cause).getStatusCode())) {
+                end(cause);
+                return;
+            }
+
+            stats.recordSubscriptionReconnect();
+            backoffInMillis = backoffInMillis == 0 ? subscriptionMinBackoffInMs : Math.min(subscriptionMaxBackoffInMs, 2 * backoffInMillis);
+            // Randomized, so that the subscribers disconnected together don't reconnect together
+            final long delayInMillis = backoffInMillis / 2 + (long) (random.nextDouble() * backoffInMillis / 2);
+            log.warn("Lost the subscription to Goodwill, reconnecting in {} ms: {}", delayInMillis, cause.getLocalizedMessage());
+            schedule(delayInMillis);
+        }
+
+        private boolean isRetryable(final int statusCode)
+        {
+            return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+        }
+
+        private void schedule(final long delayInMillis)
+        {
+            if (closed) {
+                return;
+            }
+
+            if (delayInMillis <= 0) {
+                poll();
+                return;
+            }
+            try {
+                scheduler.schedule(scheduledPoll, delayInMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // Closed in the meantime
+            }
+        }
+
+        private void end(final Throwable cause)
+        {
+            log.warn("Subscription to Goodwill ended: {}", cause.getLocalizedMessage());
+            close();
+            try {
+                listener.onSubscriptionEnded(cause);
+            }
+            catch (RuntimeException e) {
+                log.warn("Subscription listener failed", e);
+            }
+        }
+
+        @Override
+        public String getCursor()
+        {
+            return cursor;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            subscriptions.remove(this);
+            final ListenableFuture<SchemataResponse> current = inFlight;
+            if (current != null) {
+                current.cancel(true);
+            }
+            RefreshScheduler.release();
+        }
+    }
+
+    private <T> ListenableFuture<T> execute(final Call<T> call)
+    {
+        if (closed) {
+            call.future.setException(new IllegalStateException("The accessor is closed"));
+            return call.future;
+        }
+        call.start();
+        return call.future;
+    }
+
+    private void checkStatus(final Response response) throws IOException
+    {
+        if (response.getStatusCode() != 200) {
+            throw new UnexpectedStatusException(response);
+        }
+    }
+
+    private SchemataResponse readSchemata(final Response response) throws IOException
+    {
+        return readSchemata(response, null);
+    }
+
+    private SchemataResponse readSchemata(final Response response, final GoodwillSchemaConsumer consumer) throws IOException
+    {
+        final InputStream in = response.getResponseBodyAsStream();
         try {
-            return client.prepareGet(url).addHeader("Accept", "application/json").execute(new AsyncCompletionHandler<List<GoodwillSchema>>()
+            return schemataParser.parse(in, response.getHeader("ETag"), response.getHeader("Last-Modified"), consumer);
+        }
+        finally {
+            closeStream(in);
+        }
+    }
+
+    private ListenableFuture<GoodwillSchema> probe()
+    {
+        return execute(new Call<GoodwillSchema>("probe", true, false)
+        {
+            @Override
+            protected String getRequestUrl(final String registrarUrl)
+            {
+                return String.format("%s/%s", registrarUrl, PROBE_SCHEMA_NAME);
+            }
+
+            @Override
+            protected GoodwillSchema onResponse(final Response response) throws Exception
+            {
+                if (response.getStatusCode() >= 500) {
+                    throw new UnexpectedStatusException(response);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A call to Goodwill: sent to the replica the selector picks and, if hedging is enabled, to a second one
+     * when the first hasn't answered within the hedge delay (or failed). The first response wins, the other
+     * attempt is cancelled.
+     * <p/>
+     * Cancelling the future of the call aborts it.
+     */
+    private abstract class Call<T>
+    {
+        private final SettableFuture<T> future = SettableFuture.create();
+        private final String operation;
+        private final boolean probe;
+        private final boolean longPoll;
+        private final List<BoundedCompletionHandler<T>> attempts = new ArrayList<BoundedCompletionHandler<T>>(2);
+        private ReplicaSelector.Replica firstReplica = null;
+        private int pendingAttempts = 0;
+        private boolean hedgeable = false;
+        private boolean hedged = false;
+        private volatile ScheduledFuture<?> hedge = null;
+
+        /**
+         * @param operation accessor method issuing the call, for logging and listeners
+         */
+        Call(final String operation)
+        {
+            this(operation, false, false);
+        }
+
+        /**
+         * @param operation accessor method issuing the call, for logging and listeners
+         * @param probe     whether the call is a circuit breaker probe, which goes through while the circuit is open
+         * @param longPoll  whether Goodwill holds the call until it has something to answer: it is neither hedged,
+         *                  nor taken into account in the latency statistics
+         */
+        Call(final String operation, final boolean probe, final boolean longPoll)
+        {
+            this.operation = operation;
+            this.probe = probe;
+            this.longPoll = longPoll;
+        }
+
+        protected String getRequestUrl(final String registrarUrl)
+        {
+            return registrarUrl;
+        }
+
+        protected AsyncHttpClient.BoundRequestBuilder prepare(final String requestUrl)
+        {
+            return client.prepareGet(requestUrl).addHeader("Accept", "application/json");
+        }
+
+        /**
+         * Decode the response, on the decode executor
+         */
+        protected abstract T onResponse(Response response) throws Exception;
+
+        private void start()
+        {
+            if (!probe && !breaker.allowRequest()) {
+                stats.recordRejectedRequest();
+                future.setException(new GoodwillUnavailableException(String.format("Not calling %s: Goodwill is unavailable", operation)));
+                return;
+            }
+
+            future.addListener(new Runnable()
             {
                 @Override
-                public List<GoodwillSchema> onCompleted(final Response response) throws Exception
+                public void run()
                 {
-                    if (response.getStatusCode() != 200) {
-                        return null;
+                    if (future.isCancelled()) {
+                        cancelOtherAttempts(null);
                     }
+                }
+            }, MoreExecutors.sameThreadExecutor());
 
-                    InputStream in = response.getResponseBodyAsStream();
-                    try {
-                        final HashMap<String, List<GoodwillSchema>> map = mapper.readValue(in,
-                            new TypeReference<HashMap<String, List<GoodwillSchema>>>()
-                            {
-                            });
-                        return map.get("types");
-                    }
-                    finally {
-                        closeStream(in);
-                    }
+            final long hedgeDelayInMillis = longPoll ? -1 : GoodwillAccessor.this.hedgeDelayInMillis;
+            synchronized (this) {
+                hedgeable = hedgeDelayInMillis >= 0;
+                firstReplica = replicas.select(null);
+            }
+            send(firstReplica);
+
+            if (hedgeDelayInMillis >= 0) {
+                try {
+                    hedge = hedgeScheduler.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            hedge();
+                        }
+                    }, hedgeDelayInMillis, TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException e) {
+                    // Closed in the meantime: the call goes on, unhedged
+                }
+            }
+        }
+
+        private void hedge()
+        {
+            synchronized (this) {
+                if (hedged || future.isDone()) {
+                    return;
                 }
+                hedged = true;
+            }
+
+            stats.recordHedgedRequest();
+            send(replicas.select(firstReplica));
+        }
 
+        private void send(final ReplicaSelector.Replica replica)
+        {
+            final String requestUrl = getRequestUrl(replica.getRegistrarUrl());
+            final BoundedCompletionHandler<T> handler = new BoundedCompletionHandler<T>(this, replica, requestUrl);
+            synchronized (this) {
+                attempts.add(handler);
+                pendingAttempts++;
+            }
+
+            final AsyncHttpClient.BoundRequestBuilder request = prepare(requestUrl);
+            limiter.submit(new Runnable()
+            {
                 @Override
-                public void onThrowable(final Throwable t)
+                public void run()
                 {
-                    log.warn("Got exception looking up the schema list", t);
+                    if (future.isDone()) {
+                        // A hedged call answered while this attempt was queued
+                        limiter.release();
+                        return;
+                    }
+                    handler.send(request);
                 }
             });
         }
-        catch (IOException e) {
-            log.warn("Got exception looking up the schema list", e);
+
+        private void onAttemptSucceeded(final BoundedCompletionHandler<T> attempt, final T result)
+        {
+            if (future.set(result)) {
+                final boolean hedgeWon;
+                synchronized (this) {
+                    hedgeWon = attempts.indexOf(attempt) > 0;
+                }
+                if (hedgeWon) {
+                    stats.recordHedgeWin();
+                }
+                cancelOtherAttempts(attempt);
+            }
+        }
+
+        /**
+         * @param t                the failure
+         * @param transientFailure whether another replica may answer (transport error or 5xx): other failures
+         *                         (4xx, undecodable response) aren't worth a hedge
+         */
+        private void onAttemptFailed(final Throwable t, final boolean transientFailure)
+        {
+            final boolean hedgeNow;
+            synchronized (this) {
+                pendingAttempts--;
+                if (pendingAttempts > 0 || future.isDone()) {
+                    // Wait for the other attempt
+                    return;
+                }
+                hedgeNow = hedgeable && !hedged && transientFailure;
+            }
+
+            if (hedgeNow) {
+                // Fail over right away instead of waiting for the hedge delay
+                hedge();
+                return;
+            }
+            if (future.setException(t)) {
+                cancelOtherAttempts(null);
+            }
+        }
+
+        private void cancelOtherAttempts(final BoundedCompletionHandler<T> winner)
+        {
+            final ScheduledFuture<?> pendingHedge = hedge;
+            if (pendingHedge != null) {
+                pendingHedge.cancel(false);
+            }
+
+            final List<BoundedCompletionHandler<T>> others;
+            synchronized (this) {
+                others = new ArrayList<BoundedCompletionHandler<T>>(attempts);
+            }
+            for (final BoundedCompletionHandler<T> other : others) {
+                if (other != winner) {
+                    other.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the delay before hedging a call, read by the calls. Left at -1 (don't hedge) until the latency
+     * distribution is known
+     */
+    private void updateHedgeDelay()
+    {
+        if (latencies.getCount() >= MIN_HEDGE_SAMPLES) {
+            hedgeDelayInMillis = Math.max(minHedgeDelayInMs, latencies.getPercentileInMillis(hedgeQuantile));
+        }
+    }
+
+    /**
+     * Make the hedge delay follow the recent latencies, on the hedge scheduler
+     */
+    private void decayLatencies()
+    {
+        final long samples = latencies.getCount();
+        if (samples - samplesAtLastDecay >= HEDGE_WINDOW_SAMPLES) {
+            latencies.decay();
+            samplesAtLastDecay = samples;
+        }
+    }
+
+    /**
+     * Completion handler of one attempt of a call, enforcing maxPayloadSizeInBytes: the transfer is aborted as
+     * soon as the announced Content-Length, or the bytes received so far, exceed it.
+     * <p/>
+     * The I/O thread only collects the body: it is decoded by the call, on the decode executor.
+     */
+    private final class BoundedCompletionHandler<T> extends AsyncCompletionHandler<T>
+    {
+        private final Call<T> call;
+        private final ReplicaSelector.Replica replica;
+        private final String requestUrl;
+        private long payloadSizeInBytes = 0;
+        private boolean tooLarge = false;
+
+        // Timings, only taken if there are listeners to report them to, or replicas to pick from
+        private final boolean timed;
+        // Replica latencies and hedge delays are based on regular calls only
+        private final boolean tracked;
+        private final long startedAtInNanos;
+        private long sentAtInNanos = 0;
+        private long statusReceivedAtInNanos = 0;
+        private long bodyReceivedAtInNanos = 0;
+        private long decodeQueueTimeInNanos = GoodwillRequestTimings.NOT_MEASURED;
+        private long decodeTimeInNanos = GoodwillRequestTimings.NOT_MEASURED;
+        private int statusCode = -1;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        private volatile com.ning.http.client.ListenableFuture<T> responseFuture = null;
+
+        /**
+         * @param call       call this is an attempt of
+         * @param replica    replica called
+         * @param requestUrl url called, for listeners
+         */
+        BoundedCompletionHandler(final Call<T> call, final ReplicaSelector.Replica replica, final String requestUrl)
+        {
+            this.call = call;
+            this.replica = replica;
+            this.requestUrl = requestUrl;
+            this.timed = !listeners.isEmpty();
+            this.tracked = latencyAware && !call.longPoll;
+            this.startedAtInNanos = timed ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Called when the request leaves the queue of the limiter
+         */
+        void send(final AsyncHttpClient.BoundRequestBuilder request)
+        {
+            if (timed || tracked) {
+                sentAtInNanos = System.nanoTime();
+            }
+            if (tracked) {
+                replica.onCallStarted();
+            }
+            stats.recordRequest();
+
+            try {
+                responseFuture = request.execute(this);
+                if (cancelled) {
+                    responseFuture.cancel(true);
+                    release(false);
+                }
+            }
+            catch (IOException e) {
+                onThrowable(e);
+            }
+            catch (RuntimeException e) {
+                // e.g. the client has been closed
+                onThrowable(e);
+            }
+        }
+
+        /**
+         * Let the next queued request go, once the connection of this one is free
+         *
+         * @param succeeded whether the replica answered
+         */
+        private void release(final boolean succeeded)
+        {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+
+            limiter.release();
+            final long latencyInNanos = tracked && sentAtInNanos != 0 ? System.nanoTime() - sentAtInNanos : 0;
+            if (tracked && sentAtInNanos != 0) {
+                // A cancelled attempt was slower than the one which won: its elapsed time is still a (lower bound) sample
+                replica.onCallCompleted(latencyInNanos, succeeded || cancelled);
+                if (succeeded && hedgeScheduler != null) {
+                    latencies.record(TimeUnit.NANOSECONDS.toMillis(latencyInNanos));
+                    if (hedgeDelayInMillis < 0) {
+                        // Start hedging as soon as the latency distribution is known, not at the next update
+                        updateHedgeDelay();
+                    }
+                }
+            }
+            if (!cancelled) {
+                breaker.onCallCompleted(succeeded, latencyInNanos);
+            }
+        }
+
+        /**
+         * Give up on this attempt, another one answered first
+         */
+        void cancel()
+        {
+            cancelled = true;
+            final com.ning.http.client.ListenableFuture<T> sent = responseFuture;
+            if (sent != null) {
+                sent.cancel(true);
+                release(false);
+            }
+        }
+
+        @Override
+        public STATE onStatusReceived(final HttpResponseStatus status) throws Exception
+        {
+            if (timed) {
+                statusReceivedAtInNanos = System.nanoTime();
+                statusCode = status.getStatusCode();
+            }
+
+            return super.onStatusReceived(status);
+        }
+
+        @Override
+        public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception
+        {
+            if (maxPayloadSizeInBytes > 0) {
+                final String contentLength = headers.getHeaders().getFirstValue("Content-Length");
+                try {
+                    if (contentLength != null && Long.parseLong(contentLength.trim()) > maxPayloadSizeInBytes) {
+                        tooLarge = true;
+                        return STATE.ABORT;
+                    }
+                }
+                catch (NumberFormatException ignored) {
+                    // Rely on the byte count below
+                }
+            }
+
+            return super.onHeadersReceived(headers);
+        }
+
+        @Override
+        public STATE onBodyPartReceived(final HttpResponseBodyPart content) throws Exception
+        {
+            payloadSizeInBytes += content.getBodyPartBytes().length;
+            if (maxPayloadSizeInBytes > 0) {
+                if (payloadSizeInBytes > maxPayloadSizeInBytes) {
+                    tooLarge = true;
+                    return STATE.ABORT;
+                }
+            }
+
+            return super.onBodyPartReceived(content);
+        }
+
+        @Override
+        public T onCompleted(final Response response) throws Exception
+        {
+            if (timed) {
+                bodyReceivedAtInNanos = System.nanoTime();
+            }
+            release(response.getStatusCode() < 500);
+            if (cancelled) {
+                return null;
+            }
+
+            stats.recordBytesDownloaded(payloadSizeInBytes);
+            if (tooLarge) {
+                stats.recordPayloadTooLarge();
+                fail(new IOException(String.format("Response from Goodwill exceeds the maximum payload size of %d bytes", maxPayloadSizeInBytes)), false);
+                return null;
+            }
+
+            // The body has been fully received at this point: hand it over, the I/O thread is done with it
+            final long enqueuedAtInNanos = System.nanoTime();
+            try {
+                decodeExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        decode(response, enqueuedAtInNanos);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // The accessor has been closed
+                fail(e, false);
+            }
+
+            // The caller uses the future of the call, not the one of the http client
             return null;
         }
+
+        private void decode(final Response response, final long enqueuedAtInNanos)
+        {
+            final long decodeStartedAtInNanos = System.nanoTime();
+            final T result;
+            try {
+                result = call.onResponse(response);
+            }
+            catch (Exception e) {
+                recordDecode(enqueuedAtInNanos, decodeStartedAtInNanos);
+                if (e instanceof UnexpectedStatusException) {
+                    stats.recordHttpError();
+                    fail(e, ((UnexpectedStatusException) e).getStatusCode() >= 500);
+                }
+                else {
+                    stats.recordDecodeFailure();
+                    fail(e, false);
+                }
+                return;
+            }
+
+            // Record the timings before waking up the caller
+            recordDecode(enqueuedAtInNanos, decodeStartedAtInNanos);
+            report(null);
+            call.onAttemptSucceeded(this, result);
+        }
+
+        private void recordDecode(final long enqueuedAtInNanos, final long decodeStartedAtInNanos)
+        {
+            decodeQueueTimeInNanos = decodeStartedAtInNanos - enqueuedAtInNanos;
+            decodeTimeInNanos = System.nanoTime() - decodeStartedAtInNanos;
+            stats.recordDecode(decodeQueueTimeInNanos, decodeTimeInNanos);
+        }
+
+        /**
+         * Called by the http client when the call failed before a response could be received
+         */
+        @Override
+        public void onThrowable(final Throwable t)
+        {
+            release(false);
+            if (cancelled) {
+                return;
+            }
+
+            stats.recordTransportFailure(t);
+            fail(t, true);
+        }
+
+        private void fail(final Throwable t, final boolean transientFailure)
+        {
+            log.warn(String.format("Got exception calling %s on %s", call.operation, requestUrl), t);
+            report(t);
+            call.onAttemptFailed(t, transientFailure);
+        }
+
+        private void report(final Throwable failure)
+        {
+            if (!timed) {
+                return;
+            }
+
+            final long now = System.nanoTime();
+            final long queueTimeInNanos = sentAtInNanos == 0 ? GoodwillRequestTimings.NOT_MEASURED : sentAtInNanos - startedAtInNanos;
+            final long timeToFirstByteInNanos = statusReceivedAtInNanos == 0 || sentAtInNanos == 0 ? GoodwillRequestTimings.NOT_MEASURED : statusReceivedAtInNanos - sentAtInNanos;
+            final long transferTimeInNanos = statusReceivedAtInNanos == 0 || bodyReceivedAtInNanos == 0 ? GoodwillRequestTimings.NOT_MEASURED : bodyReceivedAtInNanos - statusReceivedAtInNanos;
+            final GoodwillRequestTimings timings = new GoodwillRequestTimings(call.operation, requestUrl, queueTimeInNanos,
+                timeToFirstByteInNanos, transferTimeInNanos, decodeQueueTimeInNanos, decodeTimeInNanos, now - startedAtInNanos,
+                statusCode, payloadSizeInBytes, failure);
+
+            for (final GoodwillRequestListener listener : listeners) {
+                try {
+                    listener.onRequestCompleted(timings);
+                }
+                catch (RuntimeException e) {
+                    log.warn("Request listener failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Goodwill answered with a status the call doesn't expect
+     */
+    private static final class UnexpectedStatusException extends IOException
+    {
+        private final int statusCode;
+
+        private UnexpectedStatusException(final Response response)
+        {
+            super(String.format("Goodwill returned %d %s", response.getStatusCode(), response.getStatusText()));
+            this.statusCode = response.getStatusCode();
+        }
+
+        private int getStatusCode()
+        {
+            return statusCode;
+        }
     }
 
     // note: if called from base-class constructor, couldn't sub-class; hence just make static
-    private static AsyncHttpClient createHttpClient()
+    private static AsyncHttpClient createHttpClient(final GoodwillAccessorConfig config)
     {
-        // Don't limit the number of connections per host
-        // See https://github.com/ning/async-http-client/issues/issue/28
+        // The client fails the calls above its limit (see https://github.com/ning/async-http-client/issues/issue/28):
+        // leave room for all the calls let through by the RequestLimiter, which queues the other ones
+        int maxConnectionsPerHost = config.getMaxConnectionsPerHost();
+        if (maxConnectionsPerHost > 0) {
+            maxConnectionsPerHost = config.getMaxInFlightRequests() > 0 ? Math.max(maxConnectionsPerHost, config.getMaxInFlightRequests()) : -1;
+        }
         final AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder();
-        builder.setMaximumConnectionsPerHost(-1);
+        builder.setMaximumConnectionsPerHost(maxConnectionsPerHost);
+        builder.setMaximumConnectionsTotal(-1);
+        builder.setAllowPoolingConnection(true);
+        builder.setConnectionTimeoutInMs(config.getConnectionTimeoutInMs());
+        builder.setRequestTimeoutInMs(config.getRequestTimeoutInMs());
+        builder.setIdleConnectionInPoolTimeoutInMs(config.getIdleConnectionTimeoutInMs());
         return new AsyncHttpClient(builder.build());
     }
 
     /**
-     * Close the underlying http client
+     * Get notified of the timings of each call made by this accessor. Listeners cost nothing until the first
+     * one is added.
+     *
+     * @param listener listener to add
+     */
+    public void addRequestListener(final GoodwillRequestListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeRequestListener(final GoodwillRequestListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return statistics of the calls made by this accessor
+     */
+    public GoodwillAccessorStats getStats()
+    {
+        return stats;
+    }
+
+    /**
+     * @return state of the circuit breaker: while it isn't CLOSED, calls fail right away
+     * @see GoodwillAccessorConfig#setCircuitBreakerFailureThreshold(int)
+     */
+    public GoodwillCircuitState getCircuitState()
+    {
+        return breaker.getState();
+    }
+
+    /**
+     * @return number of calls waiting for an earlier one to complete, see GoodwillAccessorConfig#setMaxInFlightRequests(int)
+     */
+    public int getQueuedRequests()
+    {
+        return limiter.getQueuedRequests();
+    }
+
+    /**
+     * Close the underlying http client and the decode threads, unless they were provided by the caller
      */
     public synchronized void close()
     {
-        client.close();
+        if (hedgeScheduler != null && !closed) {
+            hedgeDelayUpdater.cancel(false);
+            RefreshScheduler.release();
+        }
+        closed = true;
+        for (final Subscription subscription : new ArrayList<Subscription>(subscriptions)) {
+            subscription.close();
+        }
+        breaker.shutdown();
+        if (ownsClient) {
+            client.close();
+        }
+        if (ownedDecodeExecutor != null) {
+            ownedDecodeExecutor.shutdown();
+        }
+        if (limiterExecutor != null) {
+            limiterExecutor.shutdown();
+        }
+        JmxSupport.unregister(jmxObjectName);
     }
 
     protected final void closeStream(final InputStream in)
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.ning.http.client.AsyncHttpClient;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Tuning knobs for the GoodwillAccessor.
+ * <p/>
+ * Typical invocation:
+ * <pre>
+ * new GoodwillAccessor(host, port, new GoodwillAccessorConfig()
+ *     .setMaxPayloadSizeInBytes(16 * 1024 * 1024));
+ * </pre>
+ */
+public class GoodwillAccessorConfig
+{
+    public static final long DEFAULT_MAX_PAYLOAD_SIZE_IN_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_DECODE_THREADS = 1;
+    public static final int DEFAULT_CONNECTION_TIMEOUT_IN_MS = 5000;
+    public static final int DEFAULT_REQUEST_TIMEOUT_IN_MS = 60000;
+    public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 32;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = -1;
+    public static final int DEFAULT_IDLE_CONNECTION_TIMEOUT_IN_MS = 60000;
+    public static final int DEFAULT_MAX_PARALLEL_LOOKUPS = 8;
+    public static final boolean DEFAULT_BULK_LOOKUPS_ENABLED = false;
+    public static final int DEFAULT_MAX_NAMES_PER_BULK_LOOKUP = 100;
+    public static final double DEFAULT_HEDGE_QUANTILE = 0;
+    public static final long DEFAULT_MIN_HEDGE_DELAY_IN_MS = 10;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 0;
+    public static final long DEFAULT_SLOW_CALL_THRESHOLD_IN_MS = 0;
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_IN_MS = 5000;
+    public static final long DEFAULT_LONG_POLL_WAIT_IN_MS = 30000;
+    public static final long DEFAULT_SUBSCRIPTION_MIN_BACKOFF_IN_MS = 100;
+    public static final long DEFAULT_SUBSCRIPTION_MAX_BACKOFF_IN_MS = 30000;
+
+    private long maxPayloadSizeInBytes = DEFAULT_MAX_PAYLOAD_SIZE_IN_BYTES;
+    private int decodeThreads = DEFAULT_DECODE_THREADS;
+    private Executor decodeExecutor = null;
+    private String jmxObjectName = null;
+    private AsyncHttpClient httpClient = null;
+    private int connectionTimeoutInMs = DEFAULT_CONNECTION_TIMEOUT_IN_MS;
+    private int requestTimeoutInMs = DEFAULT_REQUEST_TIMEOUT_IN_MS;
+    private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int idleConnectionTimeoutInMs = DEFAULT_IDLE_CONNECTION_TIMEOUT_IN_MS;
+    private int maxParallelLookups = DEFAULT_MAX_PARALLEL_LOOKUPS;
+    private boolean bulkLookupsEnabled = DEFAULT_BULK_LOOKUPS_ENABLED;
+    private int maxNamesPerBulkLookup = DEFAULT_MAX_NAMES_PER_BULK_LOOKUP;
+    private double hedgeQuantile = DEFAULT_HEDGE_QUANTILE;
+    private long minHedgeDelayInMs = DEFAULT_MIN_HEDGE_DELAY_IN_MS;
+    private int circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+    private long slowCallThresholdInMs = DEFAULT_SLOW_CALL_THRESHOLD_IN_MS;
+    private long circuitBreakerOpenDurationInMs = DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_IN_MS;
+    private long longPollWaitInMs = DEFAULT_LONG_POLL_WAIT_IN_MS;
+    private long subscriptionMinBackoffInMs = DEFAULT_SUBSCRIPTION_MIN_BACKOFF_IN_MS;
+    private long subscriptionMaxBackoffInMs = DEFAULT_SUBSCRIPTION_MAX_BACKOFF_IN_MS;
+
+    public long getMaxPayloadSizeInBytes()
+    {
+        return maxPayloadSizeInBytes;
+    }
+
+    /**
+     * Bound the memory a response can take: bodies are buffered until fully received. The default (64MB) is well
+     * above the size of a large registry listing.
+     *
+     * @param maxPayloadSizeInBytes responses larger than this are aborted and fail (0 for no limit)
+     * @return this config
+     */
+    public GoodwillAccessorConfig setMaxPayloadSizeInBytes(final long maxPayloadSizeInBytes)
+    {
+        this.maxPayloadSizeInBytes = maxPayloadSizeInBytes;
+        return this;
+    }
+
+    public int getDecodeThreads()
+    {
+        return decodeThreads;
+    }
+
+    /**
+     * @param decodeThreads size of the dedicated pool decoding the responses, ignored if a decode executor is set
+     * @return this config
+     */
+    public GoodwillAccessorConfig setDecodeThreads(final int decodeThreads)
+    {
+        this.decodeThreads = decodeThreads;
+        return this;
+    }
+
+    public Executor getDecodeExecutor()
+    {
+        return decodeExecutor;
+    }
+
+    /**
+     * Decode the responses on an existing executor, instead of a dedicated pool. The executor is not shut
+     * down when the accessor is closed.
+     *
+     * @param decodeExecutor executor decoding the responses, null to use a dedicated pool
+     * @return this config
+     */
+    public GoodwillAccessorConfig setDecodeExecutor(final Executor decodeExecutor)
+    {
+        this.decodeExecutor = decodeExecutor;
+        return this;
+    }
+
+    public String getJmxObjectName()
+    {
+        return jmxObjectName;
+    }
+
+    /**
+     * @param jmxObjectName name to publish the accessor statistics under over JMX (e.g. com.ning.metrics.goodwill:name=GoodwillAccessor),
+     *                      null not to publish them. The name must be unique: if it is already in use, the statistics aren't published
+     * @return this config
+     * @see GoodwillAccessorStats
+     */
+    public GoodwillAccessorConfig setJmxObjectName(final String jmxObjectName)
+    {
+        this.jmxObjectName = jmxObjectName;
+        return this;
+    }
+
+    public AsyncHttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    /**
+     * Share an existing http client, e.g. between all the accessors of the JVM, instead of creating one per accessor.
+     * The client is not closed when the accessor is closed, and the timeouts and pool settings below don't apply to it.
+     *
+     * @param httpClient client to issue the calls with, null to create a dedicated one
+     * @return this config
+     */
+    public GoodwillAccessorConfig setHttpClient(final AsyncHttpClient httpClient)
+    {
+        this.httpClient = httpClient;
+        return this;
+    }
+
+    public int getConnectionTimeoutInMs()
+    {
+        return connectionTimeoutInMs;
+    }
+
+    /**
+     * @param connectionTimeoutInMs maximum time to establish a connection to Goodwill
+     * @return this config
+     */
+    public GoodwillAccessorConfig setConnectionTimeoutInMs(final int connectionTimeoutInMs)
+    {
+        this.connectionTimeoutInMs = connectionTimeoutInMs;
+        return this;
+    }
+
+    public int getRequestTimeoutInMs()
+    {
+        return requestTimeoutInMs;
+    }
+
+    /**
+     * @param requestTimeoutInMs maximum time for Goodwill to answer a call, body included
+     * @return this config
+     */
+    public GoodwillAccessorConfig setRequestTimeoutInMs(final int requestTimeoutInMs)
+    {
+        this.requestTimeoutInMs = requestTimeoutInMs;
+        return this;
+    }
+
+    public int getMaxInFlightRequests()
+    {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Calls above this limit are queued until an earlier one completes, instead of opening more connections.
+     * The limit applies to each accessor: share a GoodwillAccessor to share the limit.
+     *
+     * @param maxInFlightRequests maximum number of concurrent calls to Goodwill (0 for no limit)
+     * @return this config
+     */
+    public GoodwillAccessorConfig setMaxInFlightRequests(final int maxInFlightRequests)
+    {
+        this.maxInFlightRequests = maxInFlightRequests;
+        return this;
+    }
+
+    public int getMaxConnectionsPerHost()
+    {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * The http client fails the calls above this limit: it is raised to maxInFlightRequests if lower, so that the
+     * calls above maxInFlightRequests are queued instead. It is ignored without maxInFlightRequests.
+     *
+     * @param maxConnectionsPerHost maximum number of connections opened by the http client to each Goodwill replica (-1 for no limit)
+     * @return this config
+     */
+    public GoodwillAccessorConfig setMaxConnectionsPerHost(final int maxConnectionsPerHost)
+    {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    public int getIdleConnectionTimeoutInMs()
+    {
+        return idleConnectionTimeoutInMs;
+    }
+
+    /**
+     * @param idleConnectionTimeoutInMs idle pooled connections are closed after this delay
+     * @return this config
+     */
+    public GoodwillAccessorConfig setIdleConnectionTimeoutInMs(final int idleConnectionTimeoutInMs)
+    {
+        this.idleConnectionTimeoutInMs = idleConnectionTimeoutInMs;
+        return this;
+    }
+
+    public int getMaxParallelLookups()
+    {
+        return maxParallelLookups;
+    }
+
+    /**
+     * @param maxParallelLookups maximum number of concurrent calls issued by one GoodwillAccessor#getSchemas(Collection),
+     *                           within the limit of maxInFlightRequests
+     * @return this config
+     */
+    public GoodwillAccessorConfig setMaxParallelLookups(final int maxParallelLookups)
+    {
+        this.maxParallelLookups = maxParallelLookups;
+        return this;
+    }
+
+    public boolean isBulkLookupsEnabled()
+    {
+        return bulkLookupsEnabled;
+    }
+
+    /**
+     * Fetch up to maxNamesPerBulkLookup schemata per call in GoodwillAccessor#getSchemas(Collection), via
+     * /registrar?name=...&amp;name=... Servers which don't support it fail the call with a 4xx status: the
+     * accessor then falls back to one call per schema.
+     *
+     * @param bulkLookupsEnabled whether the Goodwill server supports bulk lookups
+     * @return this config
+     */
+    public GoodwillAccessorConfig setBulkLookupsEnabled(final boolean bulkLookupsEnabled)
+    {
+        this.bulkLookupsEnabled = bulkLookupsEnabled;
+        return this;
+    }
+
+    public int getMaxNamesPerBulkLookup()
+    {
+        return maxNamesPerBulkLookup;
+    }
+
+    /**
+     * @param maxNamesPerBulkLookup maximum number of schemata asked for in a single bulk lookup, to bound the url length
+     * @return this config
+     */
+    public GoodwillAccessorConfig setMaxNamesPerBulkLookup(final int maxNamesPerBulkLookup)
+    {
+        this.maxNamesPerBulkLookup = maxNamesPerBulkLookup;
+        return this;
+    }
+
+    public double getHedgeQuantile()
+    {
+        return hedgeQuantile;
+    }
+
+    /**
+     * Hedge the calls which are slower than usual: if Goodwill hasn't answered within this quantile of the recently
+     * observed latency, the call is also sent to another replica (or the same one, if there is only one) and the first
+     * response wins. A call which fails before with a transport error or a 5xx is hedged right away.
+     * <p/>
+     * With 0.95, about 5% more calls are made, to cut the latency tail.
+     *
+     * @param hedgeQuantile quantile of the latency after which calls are hedged (e.g. 0.95), 0 to disable hedging
+     * @return this config
+     */
+    public GoodwillAccessorConfig setHedgeQuantile(final double hedgeQuantile)
+    {
+        this.hedgeQuantile = hedgeQuantile;
+        return this;
+    }
+
+    public long getMinHedgeDelayInMs()
+    {
+        return minHedgeDelayInMs;
+    }
+
+    /**
+     * @param minHedgeDelayInMs shortest delay before hedging a call, whatever the observed latency
+     * @return this config
+     */
+    public GoodwillAccessorConfig setMinHedgeDelayInMs(final long minHedgeDelayInMs)
+    {
+        this.minHedgeDelayInMs = minHedgeDelayInMs;
+        return this;
+    }
+
+    public int getCircuitBreakerFailureThreshold()
+    {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Fail the calls right away while Goodwill is unhealthy, instead of letting callers wait for connections or
+     * timeouts: the circuit opens after this many consecutive failures (transport failures, timeouts, 5xx statuses
+     * and calls slower than slowCallThresholdInMs). Goodwill is then probed every circuitBreakerOpenDurationInMs,
+     * until it answers again.
+     * <p/>
+     * The circuit breaker is disabled by default: failing fast only pays off for callers able to do without Goodwill.
+     *
+     * @param circuitBreakerFailureThreshold consecutive failures opening the circuit (e.g. 5), 0 to disable the circuit breaker
+     * @return this config
+     * @see GoodwillAccessor#getCircuitState()
+     */
+    public GoodwillAccessorConfig setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold)
+    {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        return this;
+    }
+
+    public long getSlowCallThresholdInMs()
+    {
+        return slowCallThresholdInMs;
+    }
+
+    /**
+     * @param slowCallThresholdInMs calls slower than this count as failures for the circuit breaker, 0 to ignore the latency
+     * @return this config
+     */
+    public GoodwillAccessorConfig setSlowCallThresholdInMs(final long slowCallThresholdInMs)
+    {
+        this.slowCallThresholdInMs = slowCallThresholdInMs;
+        return this;
+    }
+
+    public long getCircuitBreakerOpenDurationInMs()
+    {
+        return circuitBreakerOpenDurationInMs;
+    }
+
+    /**
+     * @param circuitBreakerOpenDurationInMs delay between two probes of Goodwill, while the circuit is open
+     * @return this config
+     */
+    public GoodwillAccessorConfig setCircuitBreakerOpenDurationInMs(final long circuitBreakerOpenDurationInMs)
+    {
+        this.circuitBreakerOpenDurationInMs = circuitBreakerOpenDurationInMs;
+        return this;
+    }
+
+    public long getLongPollWaitInMs()
+    {
+        return longPollWaitInMs;
+    }
+
+    /**
+     * @param longPollWaitInMs how long Goodwill holds a subscription request when nothing changes. Capped to half the
+     *                         request timeout, so that idle subscriptions don't time out
+     * @return this config
+     * @see GoodwillAccessor#subscribe(String, GoodwillChangeListener)
+     */
+    public GoodwillAccessorConfig setLongPollWaitInMs(final long longPollWaitInMs)
+    {
+        this.longPollWaitInMs = longPollWaitInMs;
+        return this;
+    }
+
+    public long getSubscriptionMinBackoffInMs()
+    {
+        return subscriptionMinBackoffInMs;
+    }
+
+    /**
+     * @param subscriptionMinBackoffInMs delay before the first reconnection of a subscription. Also the minimum
+     *                                   delay between two requests, if Goodwill answers without waiting
+     * @return this config
+     */
+    public GoodwillAccessorConfig setSubscriptionMinBackoffInMs(final long subscriptionMinBackoffInMs)
+    {
+        this.subscriptionMinBackoffInMs = subscriptionMinBackoffInMs;
+        return this;
+    }
+
+    public long getSubscriptionMaxBackoffInMs()
+    {
+        return subscriptionMaxBackoffInMs;
+    }
+
+    /**
+     * @param subscriptionMaxBackoffInMs maximum delay between two reconnections of a subscription, the delay
+     *                                   doubling after each failure
+     * @return this config
+     */
+    public GoodwillAccessorConfig setSubscriptionMaxBackoffInMs(final long subscriptionMaxBackoffInMs)
+    {
+        this.subscriptionMaxBackoffInMs = subscriptionMaxBackoffInMs;
+        return this;
+    }
+}
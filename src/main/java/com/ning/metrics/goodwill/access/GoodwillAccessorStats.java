@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Statistics of the HTTP calls made by a GoodwillAccessor: volume, decoding cost and failures by cause.
+ * <p/>
+ * Counters are cumulative since the accessor was created. They can be published over JMX,
+ * see GoodwillAccessorConfig#setJmxObjectName(String).
+ */
+public class GoodwillAccessorStats implements GoodwillAccessorStatsMBean
+{
+    private final StripedCounter requests = new StripedCounter();
+    private final StripedCounter bytesDownloaded = new StripedCounter();
+    private final StripedCounter decodes = new StripedCounter();
+    private final StripedCounter decodeQueueTimeInNanos = new StripedCounter();
+    private final StripedCounter decodeTimeInNanos = new StripedCounter();
+
+    private final StripedCounter transportFailures = new StripedCounter();
+    private final StripedCounter timeouts = new StripedCounter();
+    private final StripedCounter httpErrors = new StripedCounter();
+    private final StripedCounter payloadTooLargeFailures = new StripedCounter();
+    private final StripedCounter decodeFailures = new StripedCounter();
+
+    private final StripedCounter hedgedRequests = new StripedCounter();
+    private final StripedCounter hedgeWins = new StripedCounter();
+    private final StripedCounter rejectedRequests = new StripedCounter();
+    private final StripedCounter subscriptionEvents = new StripedCounter();
+    private final StripedCounter subscriptionReconnects = new StripedCounter();
+
+    private final CircuitBreaker breaker;
+
+    GoodwillAccessorStats(final CircuitBreaker breaker)
+    {
+        this.breaker = breaker;
+    }
+
+    void recordRequest()
+    {
+        requests.increment();
+    }
+
+    void recordBytesDownloaded(final long bytes)
+    {
+        bytesDownloaded.add(bytes);
+    }
+
+    void recordDecode(final long queueTimeInNanos, final long decodeTimeInNanos)
+    {
+        decodeQueueTimeInNanos.add(queueTimeInNanos);
+        this.decodeTimeInNanos.add(decodeTimeInNanos);
+        decodes.increment();
+    }
+
+    void recordTransportFailure(final Throwable t)
+    {
+        if (t instanceof TimeoutException) {
+            timeouts.increment();
+        }
+        else {
+            transportFailures.increment();
+        }
+    }
+
+    void recordHttpError()
+    {
+        httpErrors.increment();
+    }
+
+    void recordPayloadTooLarge()
+    {
+        payloadTooLargeFailures.increment();
+    }
+
+    void recordDecodeFailure()
+    {
+        decodeFailures.increment();
+    }
+
+    void recordHedgedRequest()
+    {
+        hedgedRequests.increment();
+    }
+
+    void recordHedgeWin()
+    {
+        hedgeWins.increment();
+    }
+
+    void recordRejectedRequest()
+    {
+        rejectedRequests.increment();
+    }
+
+    void recordSubscriptionEvent()
+    {
+        subscriptionEvents.increment();
+    }
+
+    void recordSubscriptionReconnect()
+    {
+        subscriptionReconnects.increment();
+    }
+
+    /**
+     * @return number of HTTP calls issued
+     */
+    @Override
+    public long getRequests()
+    {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of response body bytes received
+     */
+    @Override
+    public long getBytesDownloaded()
+    {
+        return bytesDownloaded.sum();
+    }
+
+    /**
+     * @return number of responses decoded
+     */
+    @Override
+    public long getDecodes()
+    {
+        return decodes.sum();
+    }
+
+    /**
+     * @return cumulated time responses spent waiting for a decode thread, once fully received
+     */
+    @Override
+    public long getDecodeQueueTimeInNanos()
+    {
+        return decodeQueueTimeInNanos.sum();
+    }
+
+    /**
+     * @return cumulated time spent decoding responses
+     */
+    @Override
+    public long getDecodeTimeInNanos()
+    {
+        return decodeTimeInNanos.sum();
+    }
+
+    /**
+     * @return number of calls which failed before getting a response (connection refused, reset, ...), timeouts excluded
+     */
+    @Override
+    public long getTransportFailures()
+    {
+        return transportFailures.sum();
+    }
+
+    /**
+     * @return number of calls which timed out
+     */
+    @Override
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return number of unexpected HTTP statuses returned by Goodwill
+     */
+    @Override
+    public long getHttpErrors()
+    {
+        return httpErrors.sum();
+    }
+
+    /**
+     * @return number of responses aborted because they exceeded maxPayloadSizeInBytes
+     */
+    @Override
+    public long getPayloadTooLargeFailures()
+    {
+        return payloadTooLargeFailures.sum();
+    }
+
+    /**
+     * @return number of responses which couldn't be decoded
+     */
+    @Override
+    public long getDecodeFailures()
+    {
+        return decodeFailures.sum();
+    }
+
+    /**
+     * @return number of calls sent to a second replica, see GoodwillAccessorConfig#setHedgeQuantile(double)
+     */
+    @Override
+    public long getHedgedRequests()
+    {
+        return hedgedRequests.sum();
+    }
+
+    /**
+     * @return number of hedged calls answered first by the second replica
+     */
+    @Override
+    public long getHedgeWins()
+    {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return number of calls failed right away, because the circuit breaker was open
+     */
+    @Override
+    public long getRejectedRequests()
+    {
+        return rejectedRequests.sum();
+    }
+
+    /**
+     * @return number of changes pushed to the subscriptions, see GoodwillAccessor#subscribe
+     */
+    @Override
+    public long getSubscriptionEvents()
+    {
+        return subscriptionEvents.sum();
+    }
+
+    /**
+     * @return number of times a subscription lost its connection to Goodwill and had to reconnect
+     */
+    @Override
+    public long getSubscriptionReconnects()
+    {
+        return subscriptionReconnects.sum();
+    }
+
+    /**
+     * @return state of the circuit breaker (CLOSED, OPEN or HALF_OPEN)
+     */
+    @Override
+    public String getCircuitState()
+    {
+        return breaker.getState().name();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * JMX view of the GoodwillAccessor statistics
+ *
+ * @see GoodwillAccessorStats
+ */
+public interface GoodwillAccessorStatsMBean
+{
+    long getRequests();
+
+    long getBytesDownloaded();
+
+    long getDecodes();
+
+    long getDecodeQueueTimeInNanos();
+
+    long getDecodeTimeInNanos();
+
+    long getTransportFailures();
+
+    long getTimeouts();
+
+    long getHttpErrors();
+
+    long getPayloadTooLargeFailures();
+
+    long getDecodeFailures();
+
+    long getHedgedRequests();
+
+    long getHedgeWins();
+
+    long getRejectedRequests();
+
+    long getSubscriptionEvents();
+
+    long getSubscriptionReconnects();
+
+    String getCircuitState();
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Callback notified of the changes pushed by Goodwill to a subscription.
+ * <p/>
+ * Listeners are invoked on a decode thread of the GoodwillAccessor, one call at a time: they should return
+ * quickly. Exceptions they throw are logged and ignored.
+ *
+ * @see GoodwillAccessor#subscribe(String, GoodwillChangeListener)
+ */
+public interface GoodwillChangeListener
+{
+    /**
+     * Also called when Goodwill only moved the cursor forward: the changes are then empty, and the new cursor
+     * should be remembered to resume from it.
+     *
+     * @param sinceCursor cursor the changes are relative to
+     * @param changes     schemata added, modified or removed since then (or the full listing, if Goodwill
+     *                    doesn't support incremental sync)
+     */
+    void onChanges(String sinceCursor, SchemataResponse changes);
+
+    /**
+     * Goodwill can't serve the changes since the cursor of the subscription, e.g. because it expired or Goodwill
+     * doesn't support subscriptions. The subscription is over: the schemata should be reloaded, and a new
+     * subscription started from the cursor of the new listing.
+     *
+     * @param cause error returned by Goodwill
+     */
+    void onSubscriptionEnded(Throwable cause);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * State of the circuit breaker of a GoodwillAccessor
+ *
+ * @see GoodwillAccessorConfig#setCircuitBreakerFailureThreshold(int)
+ */
+public enum GoodwillCircuitState
+{
+    /**
+     * Goodwill is healthy: calls go through
+     */
+    CLOSED,
+    /**
+     * Goodwill is failing: calls fail right away, with a GoodwillUnavailableException
+     */
+    OPEN,
+    /**
+     * A probe is checking whether Goodwill recovered, other calls still fail right away
+     */
+    HALF_OPEN
+}
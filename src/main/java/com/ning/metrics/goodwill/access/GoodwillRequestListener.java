@@ -0,0 +1,31 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Callback notified of each HTTP call made by a GoodwillAccessor, e.g. to feed a tracing system.
+ * <p/>
+ * Listeners are invoked on the thread completing the call (an I/O or decode thread), after the result
+ * is available but before the caller's future completes: they should return quickly. Exceptions they throw
+ * are logged and ignored.
+ *
+ * @see GoodwillAccessor#addRequestListener(GoodwillRequestListener)
+ */
+public interface GoodwillRequestListener
+{
+    void onRequestCompleted(GoodwillRequestTimings timings);
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Phase by phase timing breakdown of an HTTP call made by a GoodwillAccessor.
+ * <p/>
+ * Phases which couldn't be measured (e.g. the call failed before reaching them) are reported as -1.
+ * The http client doesn't expose connection establishment: its cost is part of the time to first byte.
+ */
+public class GoodwillRequestTimings
+{
+    static final long NOT_MEASURED = -1;
+
+    private final String operation;
+    private final String url;
+    private final long queueTimeInNanos;
+    private final long timeToFirstByteInNanos;
+    private final long transferTimeInNanos;
+    private final long decodeQueueTimeInNanos;
+    private final long decodeTimeInNanos;
+    private final long totalTimeInNanos;
+    private final int statusCode;
+    private final long payloadSizeInBytes;
+    private final Throwable failure;
+
+    GoodwillRequestTimings(final String operation, final String url, final long queueTimeInNanos, final long timeToFirstByteInNanos,
+                           final long transferTimeInNanos, final long decodeQueueTimeInNanos, final long decodeTimeInNanos,
+                           final long totalTimeInNanos, final int statusCode, final long payloadSizeInBytes, final Throwable failure)
+    {
+        this.operation = operation;
+        this.url = url;
+        this.queueTimeInNanos = queueTimeInNanos;
+        this.timeToFirstByteInNanos = timeToFirstByteInNanos;
+        this.transferTimeInNanos = transferTimeInNanos;
+        this.decodeQueueTimeInNanos = decodeQueueTimeInNanos;
+        this.decodeTimeInNanos = decodeTimeInNanos;
+        this.totalTimeInNanos = totalTimeInNanos;
+        this.statusCode = statusCode;
+        this.payloadSizeInBytes = payloadSizeInBytes;
+        this.failure = failure;
+    }
+
+    /**
+     * @return name of the GoodwillAccessor method which issued the call, e.g. getSchema
+     */
+    public String getOperation()
+    {
+        return operation;
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    /**
+     * @return time spent waiting before the request could be sent
+     */
+    public long getQueueTimeInNanos()
+    {
+        return queueTimeInNanos;
+    }
+
+    /**
+     * @return time between sending the request and receiving the response status line
+     */
+    public long getTimeToFirstByteInNanos()
+    {
+        return timeToFirstByteInNanos;
+    }
+
+    /**
+     * @return time between receiving the status line and the end of the body
+     */
+    public long getTransferTimeInNanos()
+    {
+        return transferTimeInNanos;
+    }
+
+    /**
+     * @return time the response waited for a decode thread
+     */
+    public long getDecodeQueueTimeInNanos()
+    {
+        return decodeQueueTimeInNanos;
+    }
+
+    /**
+     * @return time spent deserializing the response
+     */
+    public long getDecodeTimeInNanos()
+    {
+        return decodeTimeInNanos;
+    }
+
+    /**
+     * @return time between issuing the call and its completion
+     */
+    public long getTotalTimeInNanos()
+    {
+        return totalTimeInNanos;
+    }
+
+    /**
+     * @return HTTP status returned by Goodwill, -1 if none was received
+     */
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    /**
+     * @return size of the response body received
+     */
+    public long getPayloadSizeInBytes()
+    {
+        return payloadSizeInBytes;
+    }
+
+    /**
+     * @return why the call failed, null if it succeeded
+     */
+    public Throwable getFailure()
+    {
+        return failure;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "GoodwillRequestTimings{" +
+            "operation='" + operation + '\'' +
+            ", url='" + url + '\'' +
+            ", queueTimeInNanos=" + queueTimeInNanos +
+            ", timeToFirstByteInNanos=" + timeToFirstByteInNanos +
+            ", transferTimeInNanos=" + transferTimeInNanos +
+            ", decodeQueueTimeInNanos=" + decodeQueueTimeInNanos +
+            ", decodeTimeInNanos=" + decodeTimeInNanos +
+            ", totalTimeInNanos=" + totalTimeInNanos +
+            ", statusCode=" + statusCode +
+            ", payloadSizeInBytes=" + payloadSizeInBytes +
+            ", failure=" + failure +
+            '}';
+    }
+}
@@ -26,8 +26,8 @@ import com.google.common.collect.ImmutableMap;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
@@ -40,10 +40,22 @@ import java.util.List;
 public class GoodwillSchema
 {
     private static final ObjectMapper mapper = new ObjectMapper();
+    private static final GoodwillSchemaField[] NO_FIELDS = new GoodwillSchemaField[0];
+    // Positions above this one are not worth a slot in the dense table
+    private static final int MAX_DENSE_POSITION = 1024;
 
     private final String name;
     private String sinkAddInfo;
-    private final HashMap<Short, GoodwillSchemaField> thriftItems = new HashMap<Short, GoodwillSchemaField>();
+
+    // Indexes on the fields, maintained by addThriftField
+    private final HashMap<String, GoodwillSchemaField> fieldsByName = new HashMap<String, GoodwillSchemaField>();
+    // Fields at position i are at index i, for positions in [0, MAX_DENSE_POSITION)
+    private GoodwillSchemaField[] fieldsByPosition = NO_FIELDS;
+    // Fields at other positions (rare), created on demand
+    private HashMap<Short, GoodwillSchemaField> sparseFieldsByPosition = null;
+    // All fields, sorted by position, rebuilt from the position indexes (the view is null when fields were added since)
+    private GoodwillSchemaField[] sortedFields = NO_FIELDS;
+    private volatile List<GoodwillSchemaField> sortedFieldsView = Collections.emptyList();
 
     public static final String JSON_THRIFT_TYPE_NAME = "name";
     public static final String JSON_THRIFT_TYPE_SCHEMA = "schema";
@@ -122,6 +134,7 @@ public class GoodwillSchema
         for (final GoodwillSchemaField field : items) {
             addThriftField(field);
         }
+        sortFields();
     }
 
     public static GoodwillSchema decode(final String thriftJson) throws IOException
@@ -135,19 +148,81 @@ public class GoodwillSchema
     {
         return new ImmutableMap.Builder()
             .put(JSON_THRIFT_TYPE_NAME, getName())
-            .put(JSON_THRIFT_TYPE_SCHEMA, getSchema())
+            .put(JSON_THRIFT_TYPE_SCHEMA, getFields())
             .put(JSON_THRIFT_TYPE_SINK_ADD_INFO, sinkAddInfo == null ? "" : sinkAddInfo)
             .build();
     }
 
     /**
      * Add a field in the Thrift. The code does not enforce sanity w.r.t. field positions.
+     * A field already present at the same position is replaced.
      *
      * @param goodwillSchemaField field to add
      */
     public void addThriftField(final GoodwillSchemaField goodwillSchemaField)
     {
-        thriftItems.put(goodwillSchemaField.getId(), goodwillSchemaField);
+        final short position = goodwillSchemaField.getId();
+
+        final GoodwillSchemaField previous = getFieldByPosition(position);
+        if (previous != null && fieldsByName.get(previous.getName()) == previous) {
+            fieldsByName.remove(previous.getName());
+        }
+        fieldsByName.put(goodwillSchemaField.getName(), goodwillSchemaField);
+
+        if (position >= 0 && position < MAX_DENSE_POSITION) {
+            if (position >= fieldsByPosition.length) {
+                fieldsByPosition = Arrays.copyOf(fieldsByPosition, position + 1);
+            }
+            fieldsByPosition[position] = goodwillSchemaField;
+        }
+        else {
+            if (sparseFieldsByPosition == null) {
+                sparseFieldsByPosition = new HashMap<Short, GoodwillSchemaField>();
+            }
+            sparseFieldsByPosition.put(position, goodwillSchemaField);
+        }
+
+        // Sorted lazily: adding n fields one by one stays linear
+        sortedFieldsView = null;
+    }
+
+    /**
+     * Rebuild the sorted fields, if stale. The dense position table is already in order, so only the (rare) sparse
+     * positions need sorting.
+     *
+     * @return all fields, sorted by position
+     */
+    private GoodwillSchemaField[] sortFields()
+    {
+        if (sortedFieldsView != null) {
+            return sortedFields;
+        }
+
+        final List<Short> sparsePositions = new ArrayList<Short>();
+        if (sparseFieldsByPosition != null) {
+            sparsePositions.addAll(sparseFieldsByPosition.keySet());
+            Collections.sort(sparsePositions);
+        }
+
+        final List<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>(fieldsByName.size());
+        int sparseIndex = 0;
+        // Negative positions first
+        while (sparseIndex < sparsePositions.size() && sparsePositions.get(sparseIndex) < 0) {
+            fields.add(sparseFieldsByPosition.get(sparsePositions.get(sparseIndex++)));
+        }
+        for (final GoodwillSchemaField field : fieldsByPosition) {
+            if (field != null) {
+                fields.add(field);
+            }
+        }
+        while (sparseIndex < sparsePositions.size()) {
+            fields.add(sparseFieldsByPosition.get(sparsePositions.get(sparseIndex++)));
+        }
+
+        final GoodwillSchemaField[] newSortedFields = fields.toArray(new GoodwillSchemaField[fields.size()]);
+        sortedFields = newSortedFields;
+        sortedFieldsView = Collections.unmodifiableList(Arrays.asList(newSortedFields));
+        return newSortedFields;
     }
 
     public String getName()
@@ -159,22 +234,33 @@ public class GoodwillSchema
      * Get the schema as a collection of fields.
      * We guarantee the ordering by field id.
      *
-     * @return the sorted collection of fields
+     * @return a copy of the sorted collection of fields
+     * @see #getFields() to avoid the copy
      */
     public ArrayList<GoodwillSchemaField> getSchema()
     {
-        final ArrayList<GoodwillSchemaField> items = new ArrayList<GoodwillSchemaField>(thriftItems.values());
+        return new ArrayList<GoodwillSchemaField>(getFields());
+    }
 
-        Collections.sort(items, new Comparator<GoodwillSchemaField>()
-        {
-            @Override
-            public int compare(final GoodwillSchemaField left, final GoodwillSchemaField right)
-            {
-                return Short.valueOf(left.getId()).compareTo(right.getId());
-            }
-        });
+    /**
+     * Get the schema as a read-only collection of fields, sorted by field id.
+     * This is precomputed, so cheap to call on hot paths.
+     *
+     * @return the sorted, unmodifiable collection of fields
+     */
+    public List<GoodwillSchemaField> getFields()
+    {
+        final List<GoodwillSchemaField> fields = sortedFieldsView;
+        if (fields != null) {
+            return fields;
+        }
+        sortFields();
+        return sortedFieldsView;
+    }
 
-        return items;
+    public String getSinkAddInfo()
+    {
+        return sinkAddInfo;
     }
 
     public void setSinkAddInfo(final String sinkAddInfo)
@@ -190,7 +276,15 @@ public class GoodwillSchema
      */
     public GoodwillSchemaField getFieldByPosition(final short i)
     {
-        return thriftItems.get(i);
+        if (i >= 0 && i < fieldsByPosition.length) {
+            return fieldsByPosition[i];
+        }
+        else if (sparseFieldsByPosition != null) {
+            return sparseFieldsByPosition.get(i);
+        }
+        else {
+            return null;
+        }
     }
 
     /**
@@ -201,13 +295,53 @@ public class GoodwillSchema
      */
     public GoodwillSchemaField getFieldByName(final String name)
     {
-        for (final GoodwillSchemaField field : thriftItems.values()) {
-            if (field.getName().equals(name)) {
-                return field;
+        return fieldsByName.get(name);
+    }
+
+    /**
+     * @param other schema to compare with
+     * @return true if both schemata have the same name, sink information and fields
+     */
+    boolean hasSameDefinition(final GoodwillSchema other)
+    {
+        final GoodwillSchemaField[] fields = sortFields();
+        final GoodwillSchemaField[] otherFields = other.sortFields();
+        if (!name.equals(other.name) || !equal(sinkAddInfo, other.sinkAddInfo) || fields.length != otherFields.length) {
+            return false;
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].hasSameDefinition(otherFields[i])) {
+                return false;
             }
         }
 
-        return null;
+        return true;
+    }
+
+    /**
+     * @return rough estimate of the heap retained by this schema and its fields, strings included (their sharing is ignored)
+     */
+    long estimateSizeInBytes()
+    {
+        // Header and references, HashMap table and entries, position and sorted arrays
+        long size = 48 + 48 + 32 * fieldsByName.size() + 4 * Math.max(16, 2 * fieldsByName.size());
+        final GoodwillSchemaField[] fields = sortFields();
+        size += 16 + 4 * fieldsByPosition.length + 16 + 4 * fields.length;
+        if (sparseFieldsByPosition != null) {
+            size += 48 + 48 * sparseFieldsByPosition.size();
+        }
+        size += GoodwillSchemaField.estimateSizeInBytes(name) + GoodwillSchemaField.estimateSizeInBytes(sinkAddInfo);
+
+        for (final GoodwillSchemaField field : fields) {
+            size += field.estimateSizeInBytes();
+        }
+        return size;
+    }
+
+    private static boolean equal(final Object left, final Object right)
+    {
+        return left == null ? right == null : left.equals(right);
     }
 
     @Override
@@ -219,13 +353,13 @@ public class GoodwillSchema
         catch (JsonGenerationException e) {
             return "GoodwillSchema{" +
                 JSON_THRIFT_TYPE_NAME + "='" + getName() + '\'' +
-                ", thriftItems=" + getSchema() +
+                ", thriftItems=" + getFields() +
                 '}';
         }
         catch (IOException e) {
             return "GoodwillSchema{" +
                 JSON_THRIFT_TYPE_NAME + "='" + getName() + '\'' +
-                ", thriftItems=" + getSchema() +
+                ", thriftItems=" + getFields() +
                 '}';
         }
     }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Callback receiving schemata one by one, as they are decoded from a Goodwill listing.
+ *
+ * @see GoodwillAccessor#getSchemata(GoodwillSchemaConsumer)
+ */
+public interface GoodwillSchemaConsumer
+{
+    /**
+     * Called once per schema, in listing order, from the thread decoding the response.
+     *
+     * @param schema decoded schema
+     */
+    void accept(GoodwillSchema schema);
+}
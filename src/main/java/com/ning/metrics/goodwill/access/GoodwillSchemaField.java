@@ -55,9 +55,19 @@ public class GoodwillSchemaField
     public static final String JSON_THRIFT_FIELD_SQL_SCALE = "scale";
     public static final String JSON_THRIFT_FIELD_SQL_PRECISION = "precision";
 
-    private final SchemaField schemaField;
+    // Stand-in for a null SQL length, scale or precision
+    private static final int NO_SQL_VALUE = Integer.MIN_VALUE;
+
+    // Fields are stored flat, with primitives, to keep the per-field footprint small: a cache
+    // holds a lot of them. The SchemaField and Sql objects are rebuilt on demand.
+    private final String name;
+    private final SchemaFieldType type;
+    private final short id;
     private final String description;
-    private Sql sql;
+    private final String sqlType;
+    private final int sqlLength;
+    private final int sqlScale;
+    private final int sqlPrecision;
 
     /**
      * Jackson constructor
@@ -124,13 +134,30 @@ public class GoodwillSchemaField
             throw new IllegalArgumentException("Strings cannot have a scale or precision");
         }
 
-        this.schemaField = SchemaFieldType.createSchemaField(name, type, id);
+        // Validates the type
+        final SchemaField schemaField = SchemaFieldType.createSchemaField(name, type, id);
+        this.name = schemaField.getName();
+        this.type = schemaField.getType();
+        this.id = schemaField.getId();
 
         // Optional fields
-        sql = new Sql(sqlType, sqlLength, sqlScale, sqlPrecision);
+        this.sqlType = sqlType;
+        this.sqlLength = toPrimitive(sqlLength);
+        this.sqlScale = toPrimitive(sqlScale);
+        this.sqlPrecision = toPrimitive(sqlPrecision);
         this.description = description;
     }
 
+    private static int toPrimitive(final Integer value)
+    {
+        return value == null ? NO_SQL_VALUE : value;
+    }
+
+    private static Integer toObject(final int value)
+    {
+        return value == NO_SQL_VALUE ? null : value;
+    }
+
     public GoodwillSchemaField(final SchemaField field)
     {
         this(field.getName(), field.getType().name(), field.getId(), null, null);
@@ -213,22 +240,25 @@ public class GoodwillSchemaField
 
     public String getName()
     {
-        return schemaField.getName();
+        return name;
     }
 
     public SchemaFieldType getType()
     {
-        return schemaField.getType();
+        return type;
     }
 
     public short getId()
     {
-        return schemaField.getId();
+        return id;
     }
 
+    /**
+     * @return the SQL information, built on each call
+     */
     public Sql getSql()
     {
-        return sql;
+        return new Sql(sqlType, toObject(sqlLength), toObject(sqlScale), toObject(sqlPrecision));
     }
 
     public String getDescription()
@@ -236,6 +266,42 @@ public class GoodwillSchemaField
         return description;
     }
 
+    /**
+     * @param other field to compare with
+     * @return true if both fields have the same attributes
+     */
+    boolean hasSameDefinition(final GoodwillSchemaField other)
+    {
+        return id == other.id &&
+            type == other.type &&
+            sqlLength == other.sqlLength &&
+            sqlScale == other.sqlScale &&
+            sqlPrecision == other.sqlPrecision &&
+            name.equals(other.name) &&
+            equal(description, other.description) &&
+            equal(sqlType, other.sqlType);
+    }
+
+    /**
+     * @return rough estimate of the heap retained by this field, strings included (their sharing is ignored)
+     */
+    long estimateSizeInBytes()
+    {
+        // Header, 4 references, 3 ints and a short, aligned
+        return 48 + estimateSizeInBytes(name) + estimateSizeInBytes(description) + estimateSizeInBytes(sqlType);
+    }
+
+    static long estimateSizeInBytes(final String value)
+    {
+        // String object and its char array
+        return value == null ? 0 : 40 + 2 * value.length();
+    }
+
+    private static boolean equal(final Object left, final Object right)
+    {
+        return left == null ? right == null : left.equals(right);
+    }
+
     @Override
     public String toString()
     {
@@ -247,10 +313,10 @@ public class GoodwillSchemaField
                 JSON_THRIFT_FIELD_NAME + "='" + getName() + '\'' +
                 ", " + JSON_THRIFT_FIELD_TYPE + "='" + getType() + '\'' +
                 ", " + JSON_THRIFT_FIELD_ID + "=" + getId() +
-                ", " + JSON_THRIFT_FIELD_SQL_TYPE + "='" + sql.type + '\'' +
-                ", " + JSON_THRIFT_FIELD_SQL_LENGTH + "=" + sql.length +
-                ", " + JSON_THRIFT_FIELD_SQL_SCALE + "=" + sql.scale +
-                ", " + JSON_THRIFT_FIELD_SQL_PRECISION + "=" + sql.precision +
+                ", " + JSON_THRIFT_FIELD_SQL_TYPE + "='" + sqlType + '\'' +
+                ", " + JSON_THRIFT_FIELD_SQL_LENGTH + "=" + toObject(sqlLength) +
+                ", " + JSON_THRIFT_FIELD_SQL_SCALE + "=" + toObject(sqlScale) +
+                ", " + JSON_THRIFT_FIELD_SQL_PRECISION + "=" + toObject(sqlPrecision) +
                 ", " + JSON_THRIFT_FIELD_DESCRIPTION + "=" + description +
                 '}';
         }
@@ -259,10 +325,10 @@ public class GoodwillSchemaField
                 JSON_THRIFT_FIELD_NAME + "='" + getName() + '\'' +
                 ", " + JSON_THRIFT_FIELD_TYPE + "='" + getType() + '\'' +
                 ", " + JSON_THRIFT_FIELD_ID + "=" + getId() +
-                ", " + JSON_THRIFT_FIELD_SQL_TYPE + "='" + sql.type + '\'' +
-                ", " + JSON_THRIFT_FIELD_SQL_LENGTH + "=" + sql.length +
-                ", " + JSON_THRIFT_FIELD_SQL_SCALE + "=" + sql.scale +
-                ", " + JSON_THRIFT_FIELD_SQL_PRECISION + "=" + sql.precision +
+                ", " + JSON_THRIFT_FIELD_SQL_TYPE + "='" + sqlType + '\'' +
+                ", " + JSON_THRIFT_FIELD_SQL_LENGTH + "=" + toObject(sqlLength) +
+                ", " + JSON_THRIFT_FIELD_SQL_SCALE + "=" + toObject(sqlScale) +
+                ", " + JSON_THRIFT_FIELD_SQL_PRECISION + "=" + toObject(sqlPrecision) +
                 ", " + JSON_THRIFT_FIELD_DESCRIPTION + "=" + description +
                 '}';
         }
@@ -295,29 +361,29 @@ public class GoodwillSchemaField
     {
         String fullSQLType = null;
 
-        if (sql.type == null) {
+        if (sqlType == null) {
             return null;
         }
-        else if (sql.type.equals("decimal") || sql.type.equals("numeric")) {
-            if (sql.precision != null) {
-                if (sql.scale != null) {
-                    fullSQLType = sql.type + "(" + sql.precision + ", " + sql.scale + ")";
+        else if (sqlType.equals("decimal") || sqlType.equals("numeric")) {
+            if (sqlPrecision != NO_SQL_VALUE) {
+                if (sqlScale != NO_SQL_VALUE) {
+                    fullSQLType = sqlType + "(" + sqlPrecision + ", " + sqlScale + ")";
                 }
                 else {
-                    fullSQLType = sql.type + "(" + sql.precision + ")";
+                    fullSQLType = sqlType + "(" + sqlPrecision + ")";
                 }
             }
         }
         else {
-            if (sql.type.equals("nvarchar") || sql.type.equals("varchar")) {
-                if (sql.length != null) {
-                    fullSQLType = sql.type + "(" + sql.length + ")";
+            if (sqlType.equals("nvarchar") || sqlType.equals("varchar")) {
+                if (sqlLength != NO_SQL_VALUE) {
+                    fullSQLType = sqlType + "(" + sqlLength + ")";
                 }
             }
         }
 
         if (fullSQLType == null) {
-            fullSQLType = sql.type;
+            fullSQLType = sqlType;
         }
 
         return fullSQLType;
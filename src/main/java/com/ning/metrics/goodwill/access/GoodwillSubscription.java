@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Long-poll subscription to the changes of the Goodwill registry.
+ * <p/>
+ * The subscription holds a request open until Goodwill has changes since its cursor, then resumes from the cursor
+ * of the changes. If Goodwill can't be reached, it reconnects with an exponential backoff, from the last cursor seen.
+ *
+ * @see GoodwillAccessor#subscribe(String, GoodwillChangeListener)
+ */
+public interface GoodwillSubscription
+{
+    /**
+     * @return cursor the next request resumes from
+     */
+    String getCursor();
+
+    boolean isClosed();
+
+    /**
+     * Stop the subscription. The request in flight, if any, is aborted.
+     */
+    void close();
+}
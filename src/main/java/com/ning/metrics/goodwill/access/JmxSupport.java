@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registration of the statistics MBeans in the platform MBean server.
+ * <p/>
+ * Failures are logged, never propagated: monitoring shouldn't prevent the accessors from working.
+ */
+final class JmxSupport
+{
+    private static final Logger log = LoggerFactory.getLogger(JmxSupport.class);
+
+    private JmxSupport()
+    {
+    }
+
+    /**
+     * @param mbean      MBean to register
+     * @param objectName name to register it under, null to skip the registration
+     * @return the registered name, null if the MBean couldn't be registered (e.g. the name is already in use)
+     */
+    static ObjectName register(final Object mbean, final String objectName)
+    {
+        if (objectName == null) {
+            return null;
+        }
+
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(mbean, name);
+            return name;
+        }
+        catch (InstanceAlreadyExistsException e) {
+            // The name belongs to another accessor: taking it over would let closing either of them unregister the other's
+            log.warn("Unable to register MBean {}: the name is already in use", objectName);
+            return null;
+        }
+        catch (Exception e) {
+            log.warn("Unable to register MBean {}: {}", objectName, e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    static void unregister(final ObjectName name)
+    {
+        if (name == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (Exception e) {
+            log.warn("Unable to unregister MBean {}: {}", name, e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed, roughly exponential buckets.
+ * <p/>
+ * Recording is lock-free and allocation-free. Percentiles are approximated by the upper bound of the bucket
+ * they fall in.
+ */
+public class LatencyHistogram
+{
+    // Upper bounds (inclusive) of the buckets, the last bucket catches everything above
+    private static final long[] BUCKETS_IN_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS_IN_MILLIS.length + 1);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter totalInMillis = new StripedCounter();
+    private final AtomicLong maxInMillis = new AtomicLong(0);
+
+    public void record(final long latencyInMillis)
+    {
+        counts.incrementAndGet(bucket(latencyInMillis));
+        count.increment();
+        totalInMillis.add(latencyInMillis);
+
+        long max = maxInMillis.get();
+        while (latencyInMillis > max && !maxInMillis.compareAndSet(max, latencyInMillis)) {
+            max = maxInMillis.get();
+        }
+    }
+
+    private static int bucket(final long latencyInMillis)
+    {
+        for (int i = 0; i < BUCKETS_IN_MILLIS.length; i++) {
+            if (latencyInMillis <= BUCKETS_IN_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS_IN_MILLIS.length;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public double getMeanInMillis()
+    {
+        final long count = getCount();
+        return count == 0 ? 0 : (double) totalInMillis.sum() / count;
+    }
+
+    public long getMaxInMillis()
+    {
+        return maxInMillis.get();
+    }
+
+    /**
+     * @param quantile quantile to compute, between 0 and 1 (e.g. 0.99)
+     * @return upper bound of the bucket the quantile falls in, the max if in the last bucket, 0 if nothing was recorded
+     */
+    public long getPercentileInMillis(final double quantile)
+    {
+        final long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_IN_MILLIS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(BUCKETS_IN_MILLIS[i], getMaxInMillis());
+            }
+        }
+        return getMaxInMillis();
+    }
+
+    /**
+     * Halve the bucket counts, so that the latencies recorded so far weigh half as much in the percentiles as
+     * the ones to come. The count, mean and max are not affected.
+     */
+    void decay()
+    {
+        for (int i = 0; i < counts.length(); i++) {
+            // Relative, so that concurrent records aren't lost
+            counts.addAndGet(i, -(counts.get(i) / 2));
+        }
+    }
+
+    /**
+     * @return upper bounds of the buckets, in milliseconds. The last bucket (see getBucketCounts()) has no upper bound
+     */
+    public long[] getBucketBoundsInMillis()
+    {
+        return BUCKETS_IN_MILLIS.clone();
+    }
+
+    /**
+     * @return number of latencies recorded in each bucket
+     */
+    public long[] getBucketCounts()
+    {
+        final long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+}
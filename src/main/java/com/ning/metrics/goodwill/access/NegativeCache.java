@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of schema names known not to exist in Goodwill, each remembered for a fixed TTL.
+ * When full, the oldest names are dropped first.
+ */
+class NegativeCache
+{
+    private final long ttlInMillis;
+    private final LinkedHashMap<String, Long> expirations;
+
+    NegativeCache(final long ttlInMillis, final int maxSize)
+    {
+        this.ttlInMillis = ttlInMillis;
+        this.expirations = new LinkedHashMap<String, Long>()
+        {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param name schema name to look up
+     * @param now  current time, in milliseconds
+     * @return true if the name was recently found missing
+     */
+    synchronized boolean contains(final String name, final long now)
+    {
+        final Long expiration = expirations.get(name);
+        if (expiration == null) {
+            return false;
+        }
+        else if (expiration <= now) {
+            expirations.remove(name);
+            return false;
+        }
+        else {
+            return true;
+        }
+    }
+
+    synchronized void add(final String name, final long now)
+    {
+        if (ttlInMillis <= 0) {
+            return;
+        }
+
+        // Re-insert to move the name to the young end of the map
+        expirations.remove(name);
+        expirations.put(name, now + ttlInMillis);
+    }
+
+    synchronized int size()
+    {
+        return expirations.size();
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache of individually fetched schemata, for working sets much smaller than the registry.
+ * <p/>
+ * When full, the entry evicted is the least frequently used one of a sample of the cache, the least recently used
+ * breaking ties. Samples are taken in turn around the cache, so that each entry is eventually looked at. Frequencies
+ * are halved every maxSize loads, so that formerly hot schemata eventually make room for the new ones. Pinned
+ * schemata are never evicted.
+ * <p/>
+ * Lookups are lock-free. Loads are single-flight per name, and rare: eviction only looks at a few entries.
+ */
+class OnDemandSchemaCache
+{
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final GoodwillAccessor delegate;
+    private final SchemaInterner interner;
+    private final int maxSize;
+    private final Set<String> pinnedSchemata;
+    private final NegativeCache unknownSchemata;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Load> inFlightLoads = new ConcurrentHashMap<String, Load>();
+    private final Object evictionLock = new Object();
+    private int loadsSinceAging = 0;
+    // Where the next eviction sample starts, guarded by evictionLock
+    private Iterator<Map.Entry<String, Entry>> evictionHand = null;
+
+    /**
+     * @param delegate       accessor to fetch the schemata with
+     * @param interner       deduplicates reloaded schemata against the cached ones
+     * @param maxSize        maximum number of schemata cached, pinned ones excluded
+     * @param pinnedSchemata  names never evicted
+     * @param unknownSchemata remembers the names Goodwill doesn't know
+     */
+    OnDemandSchemaCache(final GoodwillAccessor delegate, final SchemaInterner interner, final int maxSize, final Collection<String> pinnedSchemata,
+                        final NegativeCache unknownSchemata)
+    {
+        this.delegate = delegate;
+        this.interner = interner;
+        this.maxSize = maxSize;
+        this.pinnedSchemata = new HashSet<String>(pinnedSchemata);
+        this.unknownSchemata = unknownSchemata;
+    }
+
+    /**
+     * @param schemaName name of the schema
+     * @return the cached schema, null if not cached
+     */
+    GoodwillSchema get(final String schemaName)
+    {
+        final Entry entry = entries.get(schemaName);
+        if (entry == null) {
+            return null;
+        }
+
+        entry.touch();
+        return entry.schema;
+    }
+
+    /**
+     * @param schemaName name of the schema
+     * @param now        current time, in milliseconds since the epoch
+     * @return time since the schema was fetched, -1 if not cached
+     */
+    long getStalenessInMillis(final String schemaName, final long now)
+    {
+        final Entry entry = entries.get(schemaName);
+        return entry == null ? -1 : now - entry.loadTimeInMillis;
+    }
+
+    /**
+     * Fetch a schema from Goodwill and cache it. Concurrent loads of the same name share the same call.
+     * <p/>
+     * The future never fails: if Goodwill can't be reached, it yields the cached schema, if any. Names Goodwill
+     * doesn't know are added to the negative cache.
+     *
+     * @param schemaName name of the schema
+     * @return a future on the schema, null if it doesn't exist
+     */
+    ListenableFuture<GoodwillSchema> load(final String schemaName)
+    {
+        return startLoad(schemaName);
+    }
+
+    private Load startLoad(final String schemaName)
+    {
+        final Load load = new Load();
+        final Load current = inFlightLoads.putIfAbsent(schemaName, load);
+        if (current != null) {
+            return current;
+        }
+
+        final ListenableFuture<GoodwillSchema> fetch;
+        try {
+            fetch = delegate.getSchema(schemaName);
+        }
+        catch (RuntimeException e) {
+            Accessor.log.warn("Unable to load schema {}: {}", schemaName, e.getLocalizedMessage());
+            final Entry cached = entries.get(schemaName);
+            complete(schemaName, load, cached == null ? null : cached.schema);
+            return load;
+        }
+
+        fetch.addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final Entry previous = entries.get(schemaName);
+                GoodwillSchema result = previous == null ? null : previous.schema;
+                try {
+                    final GoodwillSchema schema = fetch.get();
+                    load.answered = true;
+                    if (schema == null) {
+                        // Unknown to, or removed from Goodwill
+                        entries.remove(schemaName);
+                        unknownSchemata.add(schemaName, System.currentTimeMillis());
+                        result = null;
+                    }
+                    else {
+                        result = put(schemaName, schema, previous);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e) {
+                    Accessor.log.warn("Unable to load schema {}: {}", schemaName, e.getLocalizedMessage());
+                }
+                catch (RuntimeException e) {
+                    Accessor.log.warn("Unable to load schema " + schemaName, e);
+                }
+
+                complete(schemaName, load, result);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        return load;
+    }
+
+    private void complete(final String schemaName, final Load load, final GoodwillSchema result)
+    {
+        // Let the next caller start a new load before waking up the ones waiting on this one
+        inFlightLoads.remove(schemaName, load);
+        load.set(result);
+    }
+
+    private GoodwillSchema put(final String schemaName, final GoodwillSchema schema, final Entry previous)
+    {
+        final GoodwillSchema interned = interner.intern(schema, previous == null ? null : previous.schema);
+        final Entry entry = new Entry(interned, System.currentTimeMillis(), previous);
+
+        synchronized (evictionLock) {
+            entries.put(schemaName, entry);
+            if (previous == null) {
+                evictIfNeeded(schemaName);
+            }
+        }
+
+        return interned;
+    }
+
+    // Must hold evictionLock. The schema just loaded is never the victim: the load would be wasted
+    private void evictIfNeeded(final String loadedSchema)
+    {
+        if (++loadsSinceAging >= maxSize) {
+            // Age the frequencies, for recent schemata to be able to compete with formerly hot ones
+            for (final Entry entry : entries.values()) {
+                entry.hits.set(entry.hits.get() / 2);
+            }
+            loadsSinceAging = 0;
+        }
+
+        if (entries.size() <= maxSize) {
+            return;
+        }
+
+        while (entries.size() - countCachedPinnedSchemata() > maxSize) {
+            String victim = null;
+            Entry victimEntry = null;
+            int sampled = 0;
+            // At most one round of the cache: the sample may come up short if most entries can't be evicted
+            for (int visited = 0; sampled < EVICTION_SAMPLE_SIZE && visited < entries.size(); visited++) {
+                if (evictionHand == null || !evictionHand.hasNext()) {
+                    evictionHand = entries.entrySet().iterator();
+                    if (!evictionHand.hasNext()) {
+                        break;
+                    }
+                }
+                final Map.Entry<String, Entry> candidate = evictionHand.next();
+                if (pinnedSchemata.contains(candidate.getKey()) || candidate.getKey().equals(loadedSchema)) {
+                    continue;
+                }
+                sampled++;
+                if (victimEntry == null || candidate.getValue().isColderThan(victimEntry)) {
+                    victim = candidate.getKey();
+                    victimEntry = candidate.getValue();
+                }
+            }
+
+            if (victim == null) {
+                return;
+            }
+            entries.remove(victim, victimEntry);
+        }
+    }
+
+    private int countCachedPinnedSchemata()
+    {
+        int count = 0;
+        for (final String pinnedSchema : pinnedSchemata) {
+            if (entries.containsKey(pinnedSchema)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reload all the cached schemata
+     *
+     * @return a future on true if at least one schema changed, false if none did, null if all reloads failed
+     */
+    ListenableFuture<Boolean> reloadAll()
+    {
+        return loadAll(new ArrayList<String>(entries.keySet()));
+    }
+
+    /**
+     * Fetch the pinned schemata
+     *
+     * @return a future on true if at least one schema was fetched, false if none exist (or none are pinned), null if all fetches failed
+     */
+    ListenableFuture<Boolean> prefetch()
+    {
+        return loadAll(pinnedSchemata);
+    }
+
+    private ListenableFuture<Boolean> loadAll(final Collection<String> names)
+    {
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        if (names.isEmpty()) {
+            result.set(false);
+            return result;
+        }
+
+        final AtomicInteger pending = new AtomicInteger(names.size());
+        final AtomicInteger failures = new AtomicInteger(0);
+        final AtomicInteger changes = new AtomicInteger(0);
+        for (final String name : names) {
+            final Entry before = entries.get(name);
+            final Load load = startLoad(name);
+            load.addListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final Entry after = entries.get(name);
+                    if (!load.answered) {
+                        // Goodwill couldn't be reached
+                        failures.incrementAndGet();
+                    }
+                    else if (after == null ? before != null : before == null || after.schema != before.schema) {
+                        changes.incrementAndGet();
+                    }
+
+                    if (pending.decrementAndGet() == 0) {
+                        result.set(failures.get() == names.size() ? null : changes.get() > 0);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        return result;
+    }
+
+    Collection<GoodwillSchema> getSchemata()
+    {
+        final List<GoodwillSchema> schemata = new ArrayList<GoodwillSchema>(entries.size());
+        for (final Entry entry : entries.values()) {
+            schemata.add(entry.schema);
+        }
+        return schemata;
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    long estimateSizeInBytes()
+    {
+        long size = 64 + 48 * entries.size();
+        for (final Entry entry : entries.values()) {
+            size += entry.schema.estimateSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * A load of a schema, single-flight
+     */
+    private static final class Load extends AbstractFuture<GoodwillSchema>
+    {
+        // Whether Goodwill answered, the schema existing or not
+        private volatile boolean answered = false;
+
+        @Override
+        protected boolean set(final GoodwillSchema value)
+        {
+            return super.set(value);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final GoodwillSchema schema;
+        private final long loadTimeInMillis;
+        private final AtomicInteger hits;
+        private final AtomicLong lastAccessInNanos;
+
+        private Entry(final GoodwillSchema schema, final long loadTimeInMillis, final Entry previous)
+        {
+            this.schema = schema;
+            this.loadTimeInMillis = loadTimeInMillis;
+            // A reload keeps the usage history, a first load counts as an access
+            this.hits = previous == null ? new AtomicInteger(1) : previous.hits;
+            this.lastAccessInNanos = previous == null ? new AtomicLong(System.nanoTime()) : previous.lastAccessInNanos;
+        }
+
+        private void touch()
+        {
+            hits.incrementAndGet();
+            lastAccessInNanos.set(System.nanoTime());
+        }
+
+        private boolean isColderThan(final Entry other)
+        {
+            final int myHits = hits.get();
+            final int otherHits = other.hits.get();
+            return myHits < otherHits || (myHits == otherHits && lastAccessInNanos.get() - other.lastAccessInNanos.get() < 0);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+/**
+ * Adapts the delay between two background refreshes to the observed change rate and the health of Goodwill.
+ * <p/>
+ * The delay drops to the minimum as soon as a change is detected, since more are likely to follow. It is multiplied
+ * by the backoff multiplier after each refresh which found nothing new, or failed, up to the maximum.
+ */
+class RefreshPolicy
+{
+    private final long minIntervalInMillis;
+    private final long maxIntervalInMillis;
+    private final double backoffMultiplier;
+    private long intervalInMillis;
+
+    /**
+     * @param minIntervalInMillis     delay after a change
+     * @param maxIntervalInMillis     delay after a long period without changes
+     * @param backoffMultiplier       growth factor of the delay, while nothing changes
+     * @param initialIntervalInMillis delay until the first change or backoff
+     */
+    RefreshPolicy(final long minIntervalInMillis, final long maxIntervalInMillis, final double backoffMultiplier, final long initialIntervalInMillis)
+    {
+        this.minIntervalInMillis = minIntervalInMillis;
+        this.maxIntervalInMillis = Math.max(minIntervalInMillis, maxIntervalInMillis);
+        this.backoffMultiplier = Math.max(1, backoffMultiplier);
+        this.intervalInMillis = clamp(initialIntervalInMillis);
+    }
+
+    private long clamp(final long value)
+    {
+        return Math.max(minIntervalInMillis, Math.min(maxIntervalInMillis, value));
+    }
+
+    /**
+     * @param modified whether the refresh found changes (false if it failed)
+     */
+    synchronized void onRefreshCompleted(final boolean modified)
+    {
+        if (modified) {
+            intervalInMillis = minIntervalInMillis;
+        }
+        else {
+            intervalInMillis = clamp((long) (intervalInMillis * backoffMultiplier));
+        }
+    }
+
+    synchronized long getIntervalInMillis()
+    {
+        return intervalInMillis;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.mogwee.executors.Executors;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Process-wide scheduler running the background refreshes of all CachingGoodwillAccessors, and the hedged calls
+ * of the GoodwillAccessors, on a single thread.
+ * <p/>
+ * Refreshes and calls don't block it: they are only started from it, and complete on the http client threads. The
+ * thread is started by the first accessor and stopped when the last one is closed.
+ */
+final class RefreshScheduler
+{
+    private static ScheduledExecutorService executor = null;
+    private static int users = 0;
+
+    private RefreshScheduler()
+    {
+    }
+
+    /**
+     * @return the shared executor, to give back with release() once done with it
+     */
+    static synchronized ScheduledExecutorService acquire()
+    {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor("GoodwillCacheRefresher");
+        }
+        users++;
+        return executor;
+    }
+
+    static synchronized void release()
+    {
+        users--;
+        if (users == 0) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    static synchronized int getUsers()
+    {
+        return users;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the calls across the Goodwill replicas, favoring the fastest ones: power of two choices over a
+ * latency EWMA weighted by the calls in flight.
+ * <p/>
+ * The EWMA of a replica decays towards zero while it isn't used, so that replicas which were slow (or failing)
+ * a while ago eventually get another chance.
+ */
+class ReplicaSelector
+{
+    static final double EWMA_WEIGHT = 0.3;
+    static final long DECAY_TIME_IN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Latency charged to a replica for a failed call
+    static final long FAILURE_PENALTY_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<Replica> replicas;
+    private final Random random = new Random();
+
+    /**
+     * @param registrarUrls registrar url of each replica
+     */
+    ReplicaSelector(final List<String> registrarUrls)
+    {
+        final List<Replica> replicas = new ArrayList<Replica>(registrarUrls.size());
+        for (final String registrarUrl : registrarUrls) {
+            replicas.add(new Replica(registrarUrl));
+        }
+        this.replicas = replicas;
+    }
+
+    /**
+     * @param excluded replica to avoid if possible (e.g. the one a hedged call was first sent to), null for none
+     * @return the replica to send the next call to
+     */
+    Replica select(final Replica excluded)
+    {
+        final int size = replicas.size();
+        if (size == 1) {
+            return replicas.get(0);
+        }
+        if (size == 2 && excluded != null) {
+            return replicas.get(0) == excluded ? replicas.get(1) : replicas.get(0);
+        }
+
+        Replica first;
+        do {
+            first = replicas.get(random.nextInt(size));
+        }
+        while (first == excluded);
+
+        Replica second;
+        do {
+            second = replicas.get(random.nextInt(size));
+        }
+        while (second == first || second == excluded);
+
+        final long now = System.nanoTime();
+        return first.getScore(now) <= second.getScore(now) ? first : second;
+    }
+
+    int size()
+    {
+        return replicas.size();
+    }
+
+    List<Replica> getReplicas()
+    {
+        return replicas;
+    }
+
+    static final class Replica
+    {
+        private final String registrarUrl;
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private double latencyInNanos = 0;
+        private long updatedAtInNanos = System.nanoTime();
+
+        private Replica(final String registrarUrl)
+        {
+            this.registrarUrl = registrarUrl;
+        }
+
+        String getRegistrarUrl()
+        {
+            return registrarUrl;
+        }
+
+        void onCallStarted()
+        {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * @param latencyInNanos time to get the response, ignored if the call failed
+         * @param succeeded      whether a response was received
+         */
+        void onCallCompleted(final long latencyInNanos, final boolean succeeded)
+        {
+            inFlight.decrementAndGet();
+            final long now = System.nanoTime();
+            synchronized (this) {
+                final double current = decayed(now);
+                final double sample = succeeded ? latencyInNanos : Math.max(FAILURE_PENALTY_IN_NANOS, 2 * current);
+                this.latencyInNanos = current + EWMA_WEIGHT * (sample - current);
+                this.updatedAtInNanos = now;
+            }
+        }
+
+        synchronized double getLatencyInNanos(final long now)
+        {
+            return decayed(now);
+        }
+
+        private double getScore(final long now)
+        {
+            return getLatencyInNanos(now) * (inFlight.get() + 1);
+        }
+
+        // Must hold the lock
+        private double decayed(final long now)
+        {
+            return latencyInNanos * Math.exp(-(double) (now - updatedAtInNanos) / DECAY_TIME_IN_NANOS);
+        }
+
+        @Override
+        public String toString()
+        {
+            return registrarUrl;
+        }
+    }
+}
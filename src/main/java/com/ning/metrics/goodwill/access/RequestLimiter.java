@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounds the number of requests in flight. Requests above the limit are queued, and sent as soon as
+ * an earlier one completes, instead of opening more connections.
+ * <p/>
+ * Submitting never blocks: requests run either on the calling thread or, once queued, on the send executor. The
+ * thread releasing a slot is typically an http client I/O thread, which mustn't be kept busy sending requests.
+ */
+class RequestLimiter
+{
+    private final int maxInFlightRequests;
+    private final Executor sendExecutor;
+    private final Queue<Runnable> queue = new ArrayDeque<Runnable>();
+    private int inFlightRequests = 0;
+
+    /**
+     * @param maxInFlightRequests maximum number of requests in flight (0 or less for no limit)
+     * @param sendExecutor        sends the queued requests
+     */
+    RequestLimiter(final int maxInFlightRequests, final Executor sendExecutor)
+    {
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.sendExecutor = sendExecutor;
+    }
+
+    /**
+     * Send a request now if the limit allows it, once a slot is released otherwise.
+     * The request must call release() once complete.
+     *
+     * @param request sends the request
+     */
+    void submit(final Runnable request)
+    {
+        if (maxInFlightRequests > 0) {
+            synchronized (this) {
+                if (inFlightRequests >= maxInFlightRequests) {
+                    queue.add(request);
+                    return;
+                }
+                inFlightRequests++;
+            }
+        }
+
+        request.run();
+    }
+
+    /**
+     * Release the slot of a completed request, sending the next queued one if any
+     */
+    void release()
+    {
+        if (maxInFlightRequests <= 0) {
+            return;
+        }
+
+        final Runnable next;
+        synchronized (this) {
+            next = queue.poll();
+            if (next == null) {
+                inFlightRequests--;
+                return;
+            }
+            // The slot is handed over to the next request
+        }
+
+        try {
+            sendExecutor.execute(next);
+        }
+        catch (RejectedExecutionException e) {
+            // Closing: the request fails right away anyway
+            next.run();
+        }
+    }
+
+    synchronized int getQueuedRequests()
+    {
+        return queue.size();
+    }
+
+    synchronized int getInFlightRequests()
+    {
+        return inFlightRequests;
+    }
+}
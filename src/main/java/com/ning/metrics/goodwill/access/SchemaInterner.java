@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Deduplicate freshly decoded schemata against the cached ones.
+ * <p/>
+ * A schema identical to its cached version is replaced by the cached instance. Otherwise, unchanged fields
+ * are taken from the cached version, and the strings of the new fields come from a shared pool. The decoded
+ * copies are therefore short-lived, and only the actual changes survive a refresh.
+ */
+class SchemaInterner
+{
+    // Weak keys and values: strings no longer referenced by any schema are dropped from the pool
+    private final WeakHashMap<String, WeakReference<String>> strings = new WeakHashMap<String, WeakReference<String>>();
+
+    /**
+     * @param schema   freshly decoded schema
+     * @param previous cached schema with the same name, null if none
+     * @return a schema with the same definition, sharing as much as possible with the cached one
+     */
+    synchronized GoodwillSchema intern(final GoodwillSchema schema, final GoodwillSchema previous)
+    {
+        if (previous != null && previous.hasSameDefinition(schema)) {
+            return previous;
+        }
+
+        final List<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>(schema.getFields().size());
+        for (final GoodwillSchemaField field : schema.getFields()) {
+            final GoodwillSchemaField previousField = previous == null ? null : previous.getFieldByPosition(field.getId());
+            if (previousField != null && previousField.hasSameDefinition(field)) {
+                fields.add(previousField);
+            }
+            else {
+                fields.add(intern(field));
+            }
+        }
+
+        return new GoodwillSchema(intern(schema.getName()), fields, intern(schema.getSinkAddInfo()));
+    }
+
+    private GoodwillSchemaField intern(final GoodwillSchemaField field)
+    {
+        final GoodwillSchemaField.Sql sql = field.getSql();
+        return new GoodwillSchemaField(
+            intern(field.getName()),
+            field.getType().name(),
+            field.getId(),
+            intern(field.getDescription()),
+            intern(sql.getType()),
+            sql.getLength(),
+            sql.getScale(),
+            sql.getPrecision()
+        );
+    }
+
+    synchronized String intern(final String string)
+    {
+        if (string == null) {
+            return null;
+        }
+
+        final WeakReference<String> reference = strings.get(string);
+        final String pooled = reference == null ? null : reference.get();
+        if (pooled != null) {
+            return pooled;
+        }
+
+        strings.put(string, new WeakReference<String>(string));
+        return string;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parse the schemata listing returned by Goodwill:
+ * <p/>
+ * {
+ * "types": [ schema, schema, ... ],
+ * "removed": [ "name", ... ],
+ * "cursor": "42",
+ * "delta": true
+ * }
+ * <p/>
+ * Only "types" is mandatory. Servers supporting incremental sync add a cursor to the listing; when asked for the
+ * changes since a cursor, they set "delta" and list added or modified schemata in "types" and deleted ones in "removed".
+ * Unknown fields are skipped.
+ */
+class SchemataParser
+{
+    static final String JSON_SCHEMATA_TYPES = "types"; // Hardcoded value in Goodwill
+    static final String JSON_SCHEMATA_REMOVED = "removed";
+    static final String JSON_SCHEMATA_CURSOR = "cursor";
+    static final String JSON_SCHEMATA_DELTA = "delta";
+
+    private final ObjectMapper mapper;
+
+    SchemataParser(final ObjectMapper mapper)
+    {
+        this.mapper = mapper;
+    }
+
+    SchemataResponse parse(final InputStream in, final String eTag, final String lastModified) throws IOException
+    {
+        return parse(in, eTag, lastModified, null);
+    }
+
+    /**
+     * Parse a listing, decoding schemata one at a time.
+     *
+     * @param in           listing
+     * @param eTag         ETag of the listing
+     * @param lastModified Last-Modified date of the listing
+     * @param consumer     if not null, receives the schemata as they are decoded. They are then not kept in the
+     *                     returned response, so memory usage doesn't depend on the number of schemata
+     * @return the parsed listing
+     * @throws IOException if the listing is invalid
+     */
+    SchemataResponse parse(final InputStream in, final String eTag, final String lastModified, final GoodwillSchemaConsumer consumer) throws IOException
+    {
+        final JsonParser parser = mapper.getJsonFactory().createJsonParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+            }
+
+            List<GoodwillSchema> schemata = null;
+            final List<String> removed = new ArrayList<String>();
+            String cursor = null;
+            boolean delta = false;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String fieldName = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+
+                if (token == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+
+                if (JSON_SCHEMATA_TYPES.equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    schemata = new ArrayList<GoodwillSchema>();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        final GoodwillSchema schema = mapper.readValue(parser, GoodwillSchema.class);
+                        if (consumer == null) {
+                            schemata.add(schema);
+                        }
+                        else {
+                            consumer.accept(schema);
+                        }
+                    }
+                }
+                else if (JSON_SCHEMATA_REMOVED.equals(fieldName) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        removed.add(parser.getText());
+                    }
+                }
+                else if (JSON_SCHEMATA_CURSOR.equals(fieldName)) {
+                    cursor = parser.getText();
+                }
+                else if (JSON_SCHEMATA_DELTA.equals(fieldName)) {
+                    delta = token == JsonToken.VALUE_TRUE;
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (delta) {
+                return SchemataResponse.delta(schemata == null ? new ArrayList<GoodwillSchema>() : schemata, removed, cursor);
+            }
+            else {
+                return new SchemataResponse(schemata, eTag, lastModified, cursor);
+            }
+        }
+        finally {
+            parser.close();
+        }
+    }
+}
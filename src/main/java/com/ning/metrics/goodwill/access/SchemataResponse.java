@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a conditional or incremental schemata listing: the full list of schemata, the changes since
+ * a cursor, or a marker saying that nothing changed since the validators passed in the request.
+ *
+ * @see GoodwillAccessor#getSchemataIfModified(String, String)
+ * @see GoodwillAccessor#getSchemataSince(String)
+ */
+public class SchemataResponse
+{
+    private final List<GoodwillSchema> schemata;
+    private final List<String> removedSchemata;
+    private final boolean delta;
+    private final String eTag;
+    private final String lastModified;
+    private final String cursor;
+
+    SchemataResponse(final List<GoodwillSchema> schemata, final String eTag, final String lastModified, final String cursor)
+    {
+        this(schemata, Collections.<String>emptyList(), false, eTag, lastModified, cursor);
+    }
+
+    private SchemataResponse(final List<GoodwillSchema> schemata, final List<String> removedSchemata, final boolean delta, final String eTag, final String lastModified, final String cursor)
+    {
+        this.schemata = schemata;
+        this.removedSchemata = removedSchemata;
+        this.delta = delta;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.cursor = cursor;
+    }
+
+    static SchemataResponse notModified(final String eTag, final String lastModified)
+    {
+        return new SchemataResponse(null, eTag, lastModified, null);
+    }
+
+    static SchemataResponse delta(final List<GoodwillSchema> changedSchemata, final List<String> removedSchemata, final String cursor)
+    {
+        return new SchemataResponse(changedSchemata, removedSchemata, true, null, null, cursor);
+    }
+
+    /**
+     * @return false if Goodwill answered 304 Not Modified, or if a delta is empty
+     */
+    public boolean isModified()
+    {
+        if (delta) {
+            return !schemata.isEmpty() || !removedSchemata.isEmpty();
+        }
+        else {
+            return schemata != null;
+        }
+    }
+
+    /**
+     * @return true if this response only contains the changes since the requested cursor
+     */
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+    /**
+     * @return all schemata (added or modified schemata for a delta), null if not modified
+     */
+    public List<GoodwillSchema> getSchemata()
+    {
+        return schemata;
+    }
+
+    /**
+     * @return names of the schemata deleted since the requested cursor (always empty unless this is a delta)
+     */
+    public List<String> getRemovedSchemata()
+    {
+        return removedSchemata;
+    }
+
+    /**
+     * @return the cursor to ask for the next changes, null if Goodwill doesn't support incremental sync
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * @return the ETag validator to send with the next request, may be null
+     */
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    /**
+     * @return the Last-Modified validator to send with the next request, may be null
+     */
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+}
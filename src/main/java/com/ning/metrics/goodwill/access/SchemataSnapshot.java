@@ -0,0 +1,428 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, point-in-time view of the schemata known to a CachingGoodwillAccessor.
+ * <p/>
+ * Each refresh builds a new snapshot and publishes it at once, so readers never see a partially updated cache.
+ * The generation is incremented on every publication.
+ * <p/>
+ * Each schema carries the time it was loaded. Refreshes which find no change don't build a new snapshot, they
+ * only move its validation time forward: this is the only part of a snapshot which changes.
+ * <p/>
+ * Deltas don't copy the whole registry: the schemata of the last full listing are shared with the previous snapshot,
+ * and the changes applied since are kept aside. They are folded in once there are enough of them.
+ */
+public class SchemataSnapshot
+{
+    static final SchemataSnapshot EMPTY = new SchemataSnapshot(0, 0, Collections.<String, Entry>emptyMap(), Collections.<String, Entry>emptyMap(), 0, null, null, null);
+
+    // Changes are folded into the base once there are more than this, or than the square root of the size of the
+    // base: a delta then costs O(sqrt(n)) amortized, instead of O(n)
+    private static final int MIN_CHANGES_TO_COMPACT = 32;
+    // Marks a schema of the base removed by a delta
+    private static final Entry REMOVED = new Entry(null, -1);
+
+    private final long generation;
+    private final long creationTimeInMillis;
+    // Never modified once the snapshot is built, and shared between snapshots
+    private final Map<String, Entry> base;
+    private final Map<String, Entry> changes;
+    private final int size;
+    private final String eTag;
+    private final String lastModified;
+    private final String cursor;
+
+    // Last time Goodwill confirmed the content of this snapshot
+    private volatile long validationTimeInMillis;
+
+    // Computed lazily, -1 until then
+    private volatile long estimatedSizeInBytes = -1;
+
+    private SchemataSnapshot(final long generation, final long creationTimeInMillis, final Map<String, Entry> base, final Map<String, Entry> changes,
+                             final int size, final String eTag, final String lastModified, final String cursor)
+    {
+        this.generation = generation;
+        this.creationTimeInMillis = creationTimeInMillis;
+        this.validationTimeInMillis = creationTimeInMillis;
+        this.base = base;
+        this.changes = changes;
+        this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.cursor = cursor;
+    }
+
+    private static <V> Map<String, V> newMap(final int expectedSize)
+    {
+        return new HashMap<String, V>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+    }
+
+    /**
+     * Build the snapshot following this one
+     *
+     * @param response listing returned by Goodwill, must have been modified. If it's a delta, it is applied on top
+     *                 of this snapshot's schemata
+     * @param interner deduplicates the new schemata against the ones in this snapshot
+     * @return the new snapshot, with the next generation number
+     */
+    SchemataSnapshot next(final SchemataResponse response, final SchemaInterner interner)
+    {
+        final long now = System.currentTimeMillis();
+        if (!response.isDelta()) {
+            final List<GoodwillSchema> schemata = response.getSchemata();
+            final Map<String, Entry> byName = newMap(schemata.size());
+            for (final GoodwillSchema schema : schemata) {
+                byName.put(schema.getName(), intern(schema, interner, now));
+            }
+            return new SchemataSnapshot(generation + 1, now, byName, Collections.<String, Entry>emptyMap(), byName.size(),
+                response.getETag(), response.getLastModified(), response.getCursor());
+        }
+
+        // Only the changes are copied
+        final Map<String, Entry> newChanges = newMap(changes.size() + response.getSchemata().size() + response.getRemovedSchemata().size());
+        newChanges.putAll(changes);
+        int newSize = size;
+        for (final String removedSchema : response.getRemovedSchemata()) {
+            if (!contains(removedSchema, newChanges)) {
+                continue;
+            }
+            newSize--;
+            if (base.containsKey(removedSchema)) {
+                newChanges.put(removedSchema, REMOVED);
+            }
+            else {
+                newChanges.remove(removedSchema);
+            }
+        }
+        for (final GoodwillSchema schema : response.getSchemata()) {
+            if (!contains(schema.getName(), newChanges)) {
+                newSize++;
+            }
+            newChanges.put(schema.getName(), intern(schema, interner, now));
+        }
+
+        // A delta doesn't carry validators for the full listing: keep ours
+        if (newChanges.size() <= Math.max(MIN_CHANGES_TO_COMPACT, (int) Math.sqrt(base.size()))) {
+            return new SchemataSnapshot(generation + 1, now, base, newChanges, newSize, eTag, lastModified, response.getCursor());
+        }
+
+        final Map<String, Entry> compacted = newMap(newSize);
+        compacted.putAll(base);
+        for (final Map.Entry<String, Entry> change : newChanges.entrySet()) {
+            if (change.getValue() == REMOVED) {
+                compacted.remove(change.getKey());
+            }
+            else {
+                compacted.put(change.getKey(), change.getValue());
+            }
+        }
+        return new SchemataSnapshot(generation + 1, now, compacted, Collections.<String, Entry>emptyMap(), newSize, eTag, lastModified, response.getCursor());
+    }
+
+    private boolean contains(final String schemaName, final Map<String, Entry> newChanges)
+    {
+        final Entry change = newChanges.get(schemaName);
+        return change != null ? change != REMOVED : base.containsKey(schemaName);
+    }
+
+    private Entry intern(final GoodwillSchema schema, final SchemaInterner interner, final long now)
+    {
+        final Entry previous = entry(schema.getName());
+        final GoodwillSchema interned = interner.intern(schema, previous == null ? null : previous.schema);
+        if (previous != null && previous.schema == interned) {
+            // Same definition: it keeps its load time
+            return previous;
+        }
+        return new Entry(interned, now);
+    }
+
+    /**
+     * Build the snapshot following this one when Goodwill found no change but moved the sync cursor forward
+     *
+     * @param cursor                 new incremental sync cursor
+     * @param validationTimeInMillis when Goodwill confirmed the schemata
+     * @return the new snapshot, with the same schemata (and creation time) and the next generation number
+     */
+    SchemataSnapshot withCursor(final String cursor, final long validationTimeInMillis)
+    {
+        final SchemataSnapshot snapshot = new SchemataSnapshot(generation + 1, creationTimeInMillis, base, changes, size, eTag, lastModified, cursor);
+        snapshot.markValidated(Math.max(validationTimeInMillis, this.validationTimeInMillis));
+        return snapshot;
+    }
+
+    /**
+     * @return true if the other snapshot was built from this one by {@link #withCursor}, or the other way around
+     */
+    boolean hasSameSchemata(final SchemataSnapshot other)
+    {
+        return base == other.base && changes == other.changes;
+    }
+
+    /**
+     * Rebuild a snapshot saved by {@link SnapshotFile}
+     *
+     * @param generation        generation of the rebuilt snapshot (1 when restored at startup)
+     * @param schemata          the schemata
+     * @param loadTimesInMillis load time of each schema, in the same order
+     */
+    static SchemataSnapshot restore(final long generation, final GoodwillSchema[] schemata, final long[] loadTimesInMillis, final long creationTimeInMillis,
+                                    final long validationTimeInMillis, final String eTag, final String lastModified, final String cursor)
+    {
+        final Map<String, Entry> byName = newMap(schemata.length);
+        for (int i = 0; i < schemata.length; i++) {
+            byName.put(schemata[i].getName(), new Entry(schemata[i], loadTimesInMillis[i]));
+        }
+
+        final SchemataSnapshot snapshot = new SchemataSnapshot(generation, creationTimeInMillis, byName, Collections.<String, Entry>emptyMap(), byName.size(),
+            eTag, lastModified, cursor);
+        snapshot.markValidated(validationTimeInMillis);
+        return snapshot;
+    }
+
+    /**
+     * Share the schemata which didn't change with the snapshot in use, as {@link #next} does: they keep their object
+     * and load time. Used for snapshots read from a file.
+     *
+     * @param previous snapshot in use
+     * @param interner deduplicates the schemata of this snapshot against the ones in previous
+     * @return a snapshot with the same content, generation and validators as this one
+     */
+    SchemataSnapshot internAgainst(final SchemataSnapshot previous, final SchemaInterner interner)
+    {
+        final Map<String, Entry> byName = newMap(size);
+        for (final Entry decoded : entries()) {
+            final String name = decoded.schema.getName();
+            final Entry previousEntry = previous.entry(name);
+            final GoodwillSchema interned = interner.intern(decoded.schema, previousEntry == null ? null : previousEntry.schema);
+            if (previousEntry != null && previousEntry.schema == interned) {
+                byName.put(name, previousEntry);
+            }
+            else {
+                byName.put(name, new Entry(interned, decoded.loadTimeInMillis));
+            }
+        }
+
+        final SchemataSnapshot snapshot = new SchemataSnapshot(generation, creationTimeInMillis, byName, Collections.<String, Entry>emptyMap(), byName.size(),
+            eTag, lastModified, cursor);
+        snapshot.markValidated(validationTimeInMillis);
+        return snapshot;
+    }
+
+    /**
+     * Goodwill confirmed the content of this snapshot is up to date
+     *
+     * @param validationTimeInMillis when the refresh confirming it started
+     */
+    void markValidated(final long validationTimeInMillis)
+    {
+        if (validationTimeInMillis > this.validationTimeInMillis) {
+            this.validationTimeInMillis = validationTimeInMillis;
+        }
+    }
+
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * @return when this snapshot was built, in milliseconds since the epoch (0 for the initial, empty snapshot)
+     */
+    public long getCreationTimeInMillis()
+    {
+        return creationTimeInMillis;
+    }
+
+    /**
+     * @return the ETag of the listing this snapshot was built from, may be null
+     */
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    /**
+     * @return the Last-Modified date of the listing this snapshot was built from, may be null
+     */
+    public String getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * @return the incremental sync cursor of the listing this snapshot was built from, null if not supported
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * @return last time Goodwill confirmed the content of this snapshot, in milliseconds since the epoch
+     */
+    public long getValidationTimeInMillis()
+    {
+        return validationTimeInMillis;
+    }
+
+    private Entry entry(final String schemaName)
+    {
+        if (!changes.isEmpty()) {
+            final Entry change = changes.get(schemaName);
+            if (change != null) {
+                return change == REMOVED ? null : change;
+            }
+        }
+        return base.get(schemaName);
+    }
+
+    /**
+     * @return the entries of the base not overridden by a change, then the changes
+     */
+    private Collection<Entry> entries()
+    {
+        if (changes.isEmpty()) {
+            return base.values();
+        }
+
+        final List<Entry> entries = new ArrayList<Entry>(size);
+        for (final Map.Entry<String, Entry> entry : base.entrySet()) {
+            if (!changes.containsKey(entry.getKey())) {
+                entries.add(entry.getValue());
+            }
+        }
+        for (final Entry change : changes.values()) {
+            if (change != REMOVED) {
+                entries.add(change);
+            }
+        }
+        return entries;
+    }
+
+    public GoodwillSchema getSchema(final String schemaName)
+    {
+        final Entry entry = entry(schemaName);
+        return entry == null ? null : entry.schema;
+    }
+
+    /**
+     * @param schemaName name of the schema
+     * @return when this version of the schema was loaded, in milliseconds since the epoch, -1 if it isn't in the snapshot
+     */
+    public long getLoadTimeInMillis(final String schemaName)
+    {
+        final Entry entry = entry(schemaName);
+        return entry == null ? -1 : entry.loadTimeInMillis;
+    }
+
+    /**
+     * @param schemaName name of the schema
+     * @param now        current time, in milliseconds since the epoch
+     * @return time since Goodwill last confirmed the schema, -1 if it isn't in the snapshot
+     */
+    public long getStalenessInMillis(final String schemaName, final long now)
+    {
+        final Entry entry = entry(schemaName);
+        return entry == null ? -1 : now - Math.max(entry.loadTimeInMillis, validationTimeInMillis);
+    }
+
+    public Collection<GoodwillSchema> getSchemata()
+    {
+        return new AbstractCollection<GoodwillSchema>()
+        {
+            @Override
+            public Iterator<GoodwillSchema> iterator()
+            {
+                final Iterator<Entry> entries = entries().iterator();
+                return new Iterator<GoodwillSchema>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public GoodwillSchema next()
+                    {
+                        return entries.next().schema;
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+        };
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The estimate assumes no sharing of strings, it is therefore an upper bound. It is computed on first
+     * call, then cached.
+     *
+     * @return rough estimate of the heap retained by the schemata of this snapshot
+     */
+    public long getEstimatedSizeInBytes()
+    {
+        long size = estimatedSizeInBytes;
+        if (size < 0) {
+            // HashMap table and entries
+            size = 48 + 4 * Math.max(16, 2 * this.size) + 32 * this.size;
+            for (final Entry entry : entries()) {
+                size += 24 + entry.schema.estimateSizeInBytes();
+            }
+            estimatedSizeInBytes = size;
+        }
+        return size;
+    }
+
+    private static final class Entry
+    {
+        private final GoodwillSchema schema;
+        private final long loadTimeInMillis;
+
+        private Entry(final GoodwillSchema schema, final long loadTimeInMillis)
+        {
+            this.schema = schema;
+            this.loadTimeInMillis = loadTimeInMillis;
+        }
+    }
+}
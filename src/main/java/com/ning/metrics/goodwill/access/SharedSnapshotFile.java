@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Snapshot file shared by co-located processes: the one holding the lock polls Goodwill and publishes each new
+ * snapshot, the others only read the file (and decode their own copy of the schemata).
+ * <p/>
+ * Readers never lock. Files are replaced atomically (see SnapshotFile): a reader compares the creation time in the
+ * header with the one of its snapshot, and maps the file only when it changed. When Goodwill confirms the content
+ * is up to date, the publisher moves the modification time of the file forward instead of rewriting it.
+ * <p/>
+ * If the publisher dies, the operating system releases its lock and the next reader to check takes over.
+ */
+final class SharedSnapshotFile
+{
+    private final File file;
+    private final File lockFile;
+
+    // Guarded by this
+    private RandomAccessFile lockStream = null;
+    private FileLock lock = null;
+    private boolean closed = false;
+
+    SharedSnapshotFile(final File file)
+    {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    synchronized boolean isPublisher()
+    {
+        return lock != null;
+    }
+
+    /**
+     * @return true if this process publishes the snapshots, possibly starting with this call
+     */
+    synchronized boolean tryBecomePublisher()
+    {
+        if (lock != null || closed) {
+            return lock != null;
+        }
+
+        RandomAccessFile stream = null;
+        try {
+            stream = new RandomAccessFile(lockFile, "rw");
+            lock = stream.getChannel().tryLock();
+        }
+        catch (IOException e) {
+            Accessor.log.warn("Unable to lock {}: {}", lockFile, e.getLocalizedMessage());
+        }
+        catch (OverlappingFileLockException e) {
+            // Held by another accessor of this process
+        }
+
+        if (lock != null) {
+            lockStream = stream;
+            Accessor.log.info("Polling Goodwill on behalf of the processes sharing {}", file);
+            return true;
+        }
+
+        closeQuietly(stream);
+        return false;
+    }
+
+    /**
+     * @return true if a snapshot was published
+     */
+    boolean exists()
+    {
+        return file.isFile();
+    }
+
+    /**
+     * @param current  snapshot in use
+     * @param interner deduplicates the published schemata against the ones in use
+     * @return the published snapshot, with the next generation, or null if it is the current one (which is then
+     *         marked validated as of the last confirmation by the publisher). When only the cursor of the current
+     *         one moved forward, the returned snapshot shares its schemata
+     * @throws IOException if the file couldn't be read
+     */
+    SchemataSnapshot readIfChanged(final SchemataSnapshot current, final SchemaInterner interner) throws IOException
+    {
+        final long validationTimeInMillis = file.lastModified();
+        final long creationTimeInMillis = SnapshotFile.readCreationTimeInMillis(file);
+        if (creationTimeInMillis == current.getCreationTimeInMillis()) {
+            // Same schemata, but the publisher may have saved a newer cursor aside
+            final String cursor = SnapshotFile.readCursor(file, creationTimeInMillis);
+            if (cursor != null && !cursor.equals(current.getCursor())) {
+                return current.withCursor(cursor, validationTimeInMillis);
+            }
+            current.markValidated(validationTimeInMillis);
+            return null;
+        }
+
+        final SchemataSnapshot published = SnapshotFile.read(file, current.getGeneration() + 1).internAgainst(current, interner);
+        published.markValidated(validationTimeInMillis);
+        return published;
+    }
+
+    /**
+     * Publisher side: Goodwill confirmed the published snapshot is up to date
+     */
+    void markValidated(final long validationTimeInMillis)
+    {
+        if (exists() && !file.setLastModified(validationTimeInMillis)) {
+            Accessor.log.debug("Unable to update the modification time of {}", file);
+        }
+    }
+
+    synchronized void close()
+    {
+        closed = true;
+        if (lock != null) {
+            try {
+                lock.release();
+            }
+            catch (IOException e) {
+                Accessor.log.warn("Unable to unlock {}: {}", lockFile, e.getLocalizedMessage());
+            }
+            lock = null;
+        }
+        closeQuietly(lockStream);
+        lockStream = null;
+    }
+
+    private static void closeQuietly(final RandomAccessFile stream)
+    {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
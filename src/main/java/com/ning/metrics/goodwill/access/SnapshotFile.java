@@ -0,0 +1,378 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persists snapshots to a local file, so that a restarting process can serve lookups before reaching Goodwill.
+ * <p/>
+ * Files are written aside, then renamed over the previous one: readers never see a partial file. Strings are
+ * stored once, in a table the schemata refer to by index, since field and SQL types repeat a lot. Layout, big endian:
+ * <pre>
+ * int    magic, version
+ * long   creation time, validation time
+ * int    number of strings, then for each: int length in bytes, UTF-8 bytes
+ * int    ETag, Last-Modified, cursor
+ * int    number of schemata, then for each:
+ *          int name, int sink info, long load time, int number of fields, then for each:
+ *            int name, int type, short id, int description, int sql type, int sql length, int sql scale, int sql precision
+ * long   CRC32 of all the above
+ * </pre>
+ * Strings are indexes in the table, -1 for null. Missing SQL values are stored as Integer.MIN_VALUE.
+ * <p/>
+ * When Goodwill only moves the sync cursor forward, the cursor is saved alone in a side file (same name, with a
+ * .cursor suffix), along with the creation time of the snapshot it applies to: int magic, long creation time,
+ * modified UTF-8 cursor. It is ignored once the snapshot file is replaced.
+ */
+final class SnapshotFile
+{
+    private static final int MAGIC = 0x4757534e;
+    private static final int CURSOR_MAGIC = 0x47575343;
+    private static final int VERSION = 1;
+    private static final int NULL_STRING = -1;
+    private static final int NO_SQL_VALUE = Integer.MIN_VALUE;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private SnapshotFile()
+    {
+    }
+
+    /**
+     * Atomically replace the file with the given snapshot
+     *
+     * @param file     file to write
+     * @param snapshot snapshot to save
+     * @throws IOException if the file couldn't be written, it is left untouched
+     */
+    static void write(final File file, final SchemataSnapshot snapshot) throws IOException
+    {
+        // The schemata are encoded first, to collect the strings they refer to
+        final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        final List<String> strings = new ArrayList<String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+        final DataOutputStream bodyOut = new DataOutputStream(body);
+        bodyOut.writeInt(index(snapshot.getETag(), indexes, strings));
+        bodyOut.writeInt(index(snapshot.getLastModified(), indexes, strings));
+        bodyOut.writeInt(index(snapshot.getCursor(), indexes, strings));
+        bodyOut.writeInt(snapshot.size());
+        for (final GoodwillSchema schema : snapshot.getSchemata()) {
+            bodyOut.writeInt(index(schema.getName(), indexes, strings));
+            bodyOut.writeInt(index(schema.getSinkAddInfo(), indexes, strings));
+            bodyOut.writeLong(snapshot.getLoadTimeInMillis(schema.getName()));
+            bodyOut.writeInt(schema.getFields().size());
+            for (final GoodwillSchemaField field : schema.getFields()) {
+                final GoodwillSchemaField.Sql sql = field.getSql();
+                bodyOut.writeInt(index(field.getName(), indexes, strings));
+                bodyOut.writeInt(index(field.getType().name(), indexes, strings));
+                bodyOut.writeShort(field.getId());
+                bodyOut.writeInt(index(field.getDescription(), indexes, strings));
+                bodyOut.writeInt(index(sql.getType(), indexes, strings));
+                bodyOut.writeInt(toPrimitive(sql.getLength()));
+                bodyOut.writeInt(toPrimitive(sql.getScale()));
+                bodyOut.writeInt(toPrimitive(sql.getPrecision()));
+            }
+        }
+        bodyOut.flush();
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream(body.size() + 32 * strings.size() + 64);
+        final DataOutputStream out = new DataOutputStream(content);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(snapshot.getCreationTimeInMillis());
+        out.writeLong(snapshot.getValidationTimeInMillis());
+        out.writeInt(strings.size());
+        for (final String string : strings) {
+            final byte[] bytes = string.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        body.writeTo(out);
+        out.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(content.toByteArray(), 0, content.size());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        replace(file, content);
+    }
+
+    /**
+     * Atomically record a new cursor for the snapshot saved in the file, without rewriting it
+     *
+     * @param file     snapshot file
+     * @param snapshot snapshot saved in the file, with the new cursor
+     * @throws IOException if the cursor couldn't be written
+     */
+    static void writeCursor(final File file, final SchemataSnapshot snapshot) throws IOException
+    {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(content);
+        out.writeInt(CURSOR_MAGIC);
+        out.writeLong(snapshot.getCreationTimeInMillis());
+        out.writeUTF(snapshot.getCursor());
+        out.flush();
+
+        replace(getCursorFile(file), content);
+    }
+
+    private static File getCursorFile(final File file)
+    {
+        return new File(file.getPath() + ".cursor");
+    }
+
+    /**
+     * @param file                 snapshot file
+     * @param creationTimeInMillis creation time of the snapshot saved in the file
+     * @return the cursor saved aside for this snapshot, null if none (or unreadable)
+     */
+    static String readCursor(final File file, final long creationTimeInMillis)
+    {
+        final File cursorFile = getCursorFile(file);
+        if (!cursorFile.isFile()) {
+            return null;
+        }
+
+        try {
+            final RandomAccessFile input = new RandomAccessFile(cursorFile, "r");
+            try {
+                if (input.readInt() != CURSOR_MAGIC || input.readLong() != creationTimeInMillis) {
+                    return null;
+                }
+                return input.readUTF();
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (IOException e) {
+            // Being replaced, or left over: the cursor of the snapshot file is still valid
+            return null;
+        }
+    }
+
+    private static void replace(final File target, final ByteArrayOutputStream content) throws IOException
+    {
+        // Same directory, so that the rename doesn't cross file systems
+        final File directory = target.getAbsoluteFile().getParentFile();
+        final File temp = File.createTempFile("." + target.getName(), ".tmp", directory);
+        boolean written = false;
+        try {
+            final FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                final BufferedOutputStream buffered = new BufferedOutputStream(stream);
+                content.writeTo(buffered);
+                buffered.flush();
+                stream.getFD().sync();
+            }
+            finally {
+                stream.close();
+            }
+
+            // Fails on some platforms (Windows) when the target exists: fall back to a non atomic replacement
+            written = temp.renameTo(target) || (target.delete() && temp.renameTo(target));
+            if (!written) {
+                throw new IOException("Unable to rename " + temp + " to " + target);
+            }
+        }
+        finally {
+            if (!written && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    private static int index(final String string, final Map<String, Integer> indexes, final List<String> strings)
+    {
+        if (string == null) {
+            return NULL_STRING;
+        }
+
+        Integer index = indexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            indexes.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    private static int toPrimitive(final Integer value)
+    {
+        return value == null ? NO_SQL_VALUE : value;
+    }
+
+    private static Integer toObject(final int value)
+    {
+        return value == NO_SQL_VALUE ? null : value;
+    }
+
+    /**
+     * Cheap check for a new version of the file: only its header is read
+     *
+     * @param file file to read
+     * @return creation time of the snapshot saved in the file
+     * @throws IOException if the file couldn't be read, or isn't a snapshot file
+     */
+    static long readCreationTimeInMillis(final File file) throws IOException
+    {
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            if (input.length() < 16 || input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            return input.readLong();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Load a snapshot saved by {@link #write(File, SchemataSnapshot)}. The file is memory-mapped and decoded from the mapping, into heap objects.
+     *
+     * @param file file to read
+     * @return the snapshot, with generation 1
+     * @throws IOException if the file couldn't be read, or is corrupted
+     */
+    static SchemataSnapshot read(final File file) throws IOException
+    {
+        return read(file, 1);
+    }
+
+    /**
+     * @param file       file to read
+     * @param generation generation of the returned snapshot
+     * @return the snapshot
+     * @throws IOException if the file couldn't be read, or is corrupted
+     */
+    static SchemataSnapshot read(final File file, final long generation) throws IOException
+    {
+        final ByteBuffer buffer;
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid once the file is closed
+            buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        }
+        finally {
+            input.close();
+        }
+
+        try {
+            // The cursor saved aside, if any, is the latest one
+            return decode(buffer, generation, readCursor(file, buffer.getLong(8)));
+        }
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated snapshot file " + file);
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Corrupted snapshot file " + file, e);
+        }
+    }
+
+    private static SchemataSnapshot decode(final ByteBuffer buffer, final long generation, final String latestCursor) throws IOException
+    {
+        if (buffer.remaining() < 8 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot file version: " + buffer.getInt(4));
+        }
+
+        final int contentSize = buffer.limit() - 8;
+        if (contentSize < 0 || checksum(buffer, contentSize) != buffer.getLong(contentSize)) {
+            throw new IOException("Snapshot file checksum mismatch");
+        }
+        buffer.position(8);
+
+        final long creationTimeInMillis = buffer.getLong();
+        final long validationTimeInMillis = buffer.getLong();
+
+        final String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, UTF_8);
+        }
+
+        final String eTag = string(strings, buffer.getInt());
+        final String lastModified = string(strings, buffer.getInt());
+        final String savedCursor = string(strings, buffer.getInt());
+        final String cursor = latestCursor != null ? latestCursor : savedCursor;
+
+        final GoodwillSchema[] schemata = new GoodwillSchema[buffer.getInt()];
+        final long[] loadTimesInMillis = new long[schemata.length];
+        for (int i = 0; i < schemata.length; i++) {
+            final String name = string(strings, buffer.getInt());
+            final String sinkAddInfo = string(strings, buffer.getInt());
+            loadTimesInMillis[i] = buffer.getLong();
+            final int fieldCount = buffer.getInt();
+            final List<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>(fieldCount);
+            for (int j = 0; j < fieldCount; j++) {
+                final String fieldName = string(strings, buffer.getInt());
+                final String type = string(strings, buffer.getInt());
+                final short id = buffer.getShort();
+                final String description = string(strings, buffer.getInt());
+                final String sqlType = string(strings, buffer.getInt());
+                final Integer sqlLength = toObject(buffer.getInt());
+                final Integer sqlScale = toObject(buffer.getInt());
+                final Integer sqlPrecision = toObject(buffer.getInt());
+                fields.add(new GoodwillSchemaField(fieldName, type, id, description, sqlType, sqlLength, sqlScale, sqlPrecision));
+            }
+            schemata[i] = new GoodwillSchema(name, fields, sinkAddInfo);
+        }
+
+        return SchemataSnapshot.restore(generation, schemata, loadTimesInMillis, creationTimeInMillis, validationTimeInMillis, eTag, lastModified, cursor);
+    }
+
+    private static long checksum(final ByteBuffer buffer, final int size)
+    {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer content = buffer.duplicate();
+        content.position(0);
+        final byte[] chunk = new byte[8192];
+        int remaining = size;
+        while (remaining > 0) {
+            final int length = Math.min(chunk.length, remaining);
+            content.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+            remaining -= length;
+        }
+        return crc.getValue();
+    }
+
+    private static String string(final String[] strings, final int index)
+    {
+        return index == NULL_STRING ? null : strings[index];
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spreading concurrent updates over several cells, to avoid contention on a single one.
+ * <p/>
+ * Updates are cheap and allocation-free, reads sum all cells.
+ */
+class StripedCounter
+{
+    // Cells are spaced by a cache line (8 longs) to avoid false sharing
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes()
+    {
+        // Next power of two above the number of processors, capped
+        final int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        int stripes = 1;
+        while (stripes < processors) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    public void increment()
+    {
+        add(1);
+    }
+
+    public void add(final long value)
+    {
+        final long id = Thread.currentThread().getId();
+        final int stripe = (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, value);
+    }
+
+    public long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
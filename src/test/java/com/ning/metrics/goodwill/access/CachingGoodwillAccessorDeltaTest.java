@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CachingGoodwillAccessorDeltaTest
+{
+    private static final int CACHE_TIMEOUT_IN_SECONDS = 3600; // Refreshes are triggered by hand
+
+    private GoodwillServerStandIn goodwill;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("First"));
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Second"));
+        goodwill.start();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        goodwill.stop();
+    }
+
+    @Test(groups = "slow")
+    public void testDeltaSync() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", goodwill.getPort(), CACHE_TIMEOUT_IN_SECONDS);
+        waitForWarmUp(accessor);
+        Assert.assertEquals(goodwill.fullListings.get(), 1);
+        Assert.assertEquals(accessor.getSnapshot().getCursor(), "2");
+        Assert.assertEquals(accessor.getSnapshot().size(), 2);
+
+        goodwill.removeSchema("First");
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Third"));
+
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(goodwill.fullListings.get(), 1);
+        Assert.assertEquals(goodwill.deltaListings.get(), 1);
+        Assert.assertEquals(accessor.getSnapshot().getCursor(), "4");
+        Assert.assertEquals(accessor.getSnapshot().size(), 2);
+        Assert.assertNull(accessor.getSnapshot().getSchema("First"));
+        Assert.assertNotNull(accessor.getSnapshot().getSchema("Second"));
+        Assert.assertNotNull(accessor.getSnapshot().getSchema("Third"));
+
+        // No change: the snapshot is kept
+        final long generation = accessor.getSnapshot().getGeneration();
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(goodwill.deltaListings.get(), 2);
+        Assert.assertEquals(accessor.getSnapshot().getGeneration(), generation);
+
+        // Empty delta with a new cursor: same schemata, but the next sync starts from the new cursor
+        final GoodwillSchema second = accessor.getSnapshot().getSchema("Second");
+        goodwill.bumpVersion();
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(goodwill.deltaListings.get(), 3);
+        Assert.assertEquals(accessor.getSnapshot().getCursor(), "5");
+        Assert.assertSame(accessor.getSnapshot().getSchema("Second"), second);
+
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Fourth"));
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(accessor.getSnapshot().getCursor(), "6");
+        Assert.assertNotNull(accessor.getSnapshot().getSchema("Fourth"));
+        Assert.assertEquals(goodwill.fullListings.get(), 1);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testNoDeltaSupport() throws Exception
+    {
+        goodwill.supportsDelta = false;
+
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", goodwill.getPort(), CACHE_TIMEOUT_IN_SECONDS);
+        waitForWarmUp(accessor);
+        Assert.assertNull(accessor.getSnapshot().getCursor());
+
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Third"));
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(goodwill.deltaListings.get(), 0);
+        Assert.assertNotNull(accessor.getSnapshot().getSchema("Third"));
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testFallbackToFullListing() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", goodwill.getPort(), CACHE_TIMEOUT_IN_SECONDS);
+        waitForWarmUp(accessor);
+        final int fullListings = goodwill.fullListings.get();
+
+        // Goodwill can't serve the changes: get everything instead
+        goodwill.deltaGone = true;
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Third"));
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(goodwill.fullListings.get(), fullListings + 1);
+        Assert.assertNotNull(accessor.getSnapshot().getSchema("Third"));
+        Assert.assertEquals(accessor.getSnapshot().getCursor(), "3");
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testSubscription() throws Exception
+    {
+        final GoodwillAccessor delegate = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig()
+            .setLongPollWaitInMs(1000)
+            .setSubscriptionMinBackoffInMs(50)
+            .setSubscriptionMaxBackoffInMs(200));
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor(delegate, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(CACHE_TIMEOUT_IN_SECONDS)
+            .setSubscriptionEnabled(true));
+        try {
+            waitForWarmUp(accessor);
+
+            // Changes show up without any refresh
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Third"));
+            waitForSchema(accessor, "Third", true);
+            goodwill.removeSchema("First");
+            waitForSchema(accessor, "First", false);
+            Assert.assertEquals(accessor.getStats().getPushRefreshes(), 2);
+            Assert.assertEquals(accessor.getSnapshot().getCursor(), "4");
+            Assert.assertEquals(goodwill.fullListings.get(), 1);
+            Assert.assertTrue(goodwill.longPolls.get() >= 2);
+
+            // Goodwill goes down: the subscription reconnects from its cursor once it is back
+            goodwill.shouldBomb = true;
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (accessor.getStats().getHttpStats().getSubscriptionReconnects() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(accessor.getStats().getHttpStats().getSubscriptionReconnects() > 0);
+            goodwill.shouldBomb = false;
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Fourth"));
+            waitForSchema(accessor, "Fourth", true);
+            Assert.assertEquals(goodwill.fullListings.get(), 1);
+        }
+        finally {
+            accessor.close();
+            delegate.close();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testSubscriptionEnded() throws Exception
+    {
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig()
+            .setSubscriptionMinBackoffInMs(200));
+        final List<String> cursors = new CopyOnWriteArrayList<String>();
+        final CountDownLatch ended = new CountDownLatch(1);
+        try {
+            // Goodwill answers right away: the subscription doesn't spin
+            goodwill.supportsLongPoll = false;
+            final GoodwillSubscription subscription = accessor.subscribe("2", new GoodwillChangeListener()
+            {
+                @Override
+                public void onChanges(final String sinceCursor, final SchemataResponse changes)
+                {
+                    cursors.add(sinceCursor);
+                }
+
+                @Override
+                public void onSubscriptionEnded(final Throwable cause)
+                {
+                    ended.countDown();
+                }
+            });
+            Thread.sleep(500);
+            Assert.assertTrue(goodwill.deltaListings.get() <= 4);
+            Assert.assertTrue(cursors.isEmpty());
+
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Third"));
+            Thread.sleep(500);
+            Assert.assertEquals(cursors, Arrays.asList("2"));
+            Assert.assertEquals(subscription.getCursor(), "3");
+
+            // The cursor expired
+            goodwill.deltaGone = true;
+            Assert.assertTrue(ended.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(subscription.isClosed());
+        }
+        finally {
+            accessor.close();
+        }
+    }
+
+    private void waitForSchema(final CachingGoodwillAccessor accessor, final String schemaName, final boolean present) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((accessor.getSnapshot().getSchema(schemaName) != null) != present && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(accessor.getSnapshot().getSchema(schemaName) != null, present);
+    }
+
+    // The cache is warmed up in the background on startup
+    private void waitForWarmUp(final CachingGoodwillAccessor accessor) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (accessor.getSnapshot().getGeneration() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(accessor.getSnapshot().getGeneration(), 1);
+    }
+}
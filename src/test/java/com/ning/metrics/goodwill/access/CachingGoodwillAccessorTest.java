@@ -17,6 +17,7 @@
 package com.ning.metrics.goodwill.access;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
@@ -26,16 +27,25 @@ import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.testng.Assert;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class CachingGoodwillAccessorTest
@@ -49,6 +59,8 @@ public class CachingGoodwillAccessorTest
     private Server errorServer;
     private final AtomicInteger serversHits = new AtomicInteger(0);
     private boolean jettyShouldBomb = false;
+    private volatile long jettyDelayInMillis = 0;
+    private volatile String jettyETag = null;
 
     @BeforeClass(alwaysRun = true)
     public void setUpGlobal() throws Exception
@@ -64,6 +76,15 @@ public class CachingGoodwillAccessorTest
             public void handle(AbstractHttpConnection connection) throws IOException, ServletException
             {
                 serversHits.incrementAndGet();
+                if (jettyDelayInMillis > 0) {
+                    try {
+                        Thread.sleep(jettyDelayInMillis);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
                 final Request request = connection.getRequest();
                 final Response response = connection.getResponse();
 
@@ -72,8 +93,16 @@ public class CachingGoodwillAccessorTest
                     request.setHandled(true);
                     return;
                 }
+                else if (jettyETag != null && jettyETag.equals(request.getHeader("If-None-Match"))) {
+                    response.setStatus(304);
+                    request.setHandled(true);
+                    return;
+                }
                 else {
                     response.setStatus(200);
+                    if (jettyETag != null) {
+                        response.setHeader("ETag", jettyETag);
+                    }
                 }
 
                 // Create a dummy schema
@@ -102,6 +131,15 @@ public class CachingGoodwillAccessorTest
         server.start();
     }
 
+    @BeforeMethod(alwaysRun = true)
+    public void setUp()
+    {
+        serversHits.set(0);
+        jettyShouldBomb = false;
+        jettyDelayInMillis = 0;
+        jettyETag = null;
+    }
+
     @AfterClass(alwaysRun = true)
     public void tearDownGlobal() throws Exception
     {
@@ -135,25 +173,30 @@ public class CachingGoodwillAccessorTest
         // It will warm the cache on startup - give it some time
         Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
         Assert.assertEquals(serversHits.get(), 1);
+        final SchemataSnapshot warmSnapshot = accessor.getSnapshot();
+        Assert.assertEquals(warmSnapshot.getGeneration(), 1);
+        Assert.assertNotNull(warmSnapshot.getSchema(SCHEMA_NAME));
 
         // The caching accessor will hit the server if the schema does not exist
         GoodwillSchema schema = accessor.getSchema("Doesn'tExist");
         Assert.assertNull(schema);
         Assert.assertEquals(serversHits.get(), 2);
 
-        // Try again
+        // Try again: the unknown schema is remembered in the negative cache
         schema = accessor.getSchema("Doesn'tExist");
         Assert.assertNull(schema);
-        Assert.assertEquals(serversHits.get(), 3);
+        Assert.assertEquals(serversHits.get(), 2); // No hit!
 
         // Valid schema in the cache shouldn't trigger a hit
         schema = accessor.getSchema(SCHEMA_NAME);
         Assert.assertNotNull(schema);
-        Assert.assertEquals(serversHits.get(), 3); // No hit!
+        Assert.assertEquals(serversHits.get(), 2); // No hit!
 
         // Test backend thread
         Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000);
-        Assert.assertEquals(serversHits.get(), 4); // Refresh
+        Assert.assertEquals(serversHits.get(), 3); // Refresh
+        Assert.assertTrue(accessor.getSnapshot().getGeneration() > warmSnapshot.getGeneration());
+        Assert.assertEquals(warmSnapshot.getGeneration(), 1); // Snapshots are immutable
 
         // We shouldn't care if Goodwill is down
         jettyShouldBomb = true;
@@ -161,13 +204,600 @@ public class CachingGoodwillAccessorTest
         // The good schema is cached
         schema = accessor.getSchema(SCHEMA_NAME);
         Assert.assertNotNull(schema);
-        Assert.assertEquals(serversHits.get(), 4);
+        Assert.assertEquals(serversHits.get(), 3);
 
         // The bad schemas are not
         schema = accessor.getSchema("NewOne");
         Assert.assertNull(schema);
-        Assert.assertEquals(serversHits.get(), 5);
+        Assert.assertEquals(serversHits.get(), 4);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testConcurrentMissesShareOneRefresh() throws Exception
+    {
+        // Long timeout: only the warm-up refresh runs in the background
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, 3600);
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+
+        jettyDelayInMillis = 500;
+        final int nbThreads = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nbThreads; i++) {
+            final Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    accessor.getSchema("Doesn'tExist");
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        // All misses arrived while the first refresh was in flight
+        Assert.assertTrue(serversHits.get() <= 3, "Too many refreshes: " + serversHits.get());
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testMissRefreshesAreRateLimited() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, 3600, 60000);
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+
+        Assert.assertNull(accessor.getSchema("Doesn'tExist"));
+        Assert.assertEquals(serversHits.get(), 2);
+
+        // Within the interval, misses are answered from the cache
+        Assert.assertNull(accessor.getSchema("Doesn'tExist"));
+        Assert.assertNull(accessor.getSchema("NewOne"));
+        Assert.assertEquals(serversHits.get(), 2);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testNegativeCacheExpires() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setNegativeCacheTtlInMillis(1000));
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+
+        Assert.assertNull(accessor.getSchema("Doesn'tExist"));
+        Assert.assertEquals(serversHits.get(), 2);
+
+        Assert.assertNull(accessor.getSchema("Doesn'tExist"));
+        Assert.assertEquals(serversHits.get(), 2);
+
+        // Once the TTL has expired, the name is looked up again
+        Thread.sleep(1500);
+        Assert.assertNull(accessor.getSchema("Doesn'tExist"));
+        Assert.assertEquals(serversHits.get(), 3);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testFailedRefreshDoesNotRememberUnknownNames() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.start();
+
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", goodwill.getPort(), new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setMinMissRefreshIntervalInMillis(0));
+        try {
+            Assert.assertTrue(accessor.awaitInitialLoad(5, TimeUnit.SECONDS));
+
+            // Goodwill is down: the miss refresh fails, the name isn't known to be missing
+            goodwill.shouldBomb = true;
+            Assert.assertNull(accessor.getSchema("New"));
+            Assert.assertEquals(accessor.getStats().getNegativeCacheSize(), 0);
+
+            // Back up, with the schema registered in the meantime
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("New"));
+            goodwill.shouldBomb = false;
+            Assert.assertEquals(accessor.getSchema("New").getName(), "New");
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testConditionalRefresh() throws Exception
+    {
+        jettyETag = "\"v1\"";
+
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, 3600);
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+        Assert.assertEquals(accessor.getSnapshot().getGeneration(), 1);
+        Assert.assertEquals(accessor.getSnapshot().getETag(), jettyETag);
+
+        // Not modified: the snapshot is kept as is
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(serversHits.get(), 2);
+        Assert.assertEquals(accessor.getSnapshot().getGeneration(), 1);
+
+        // Modified: a new snapshot is published
+        jettyETag = "\"v2\"";
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(serversHits.get(), 3);
+        Assert.assertEquals(accessor.getSnapshot().getGeneration(), 2);
+        Assert.assertEquals(accessor.getSnapshot().getETag(), jettyETag);
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testAsyncLookups() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, 3600);
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+
+        // Hits complete right away
+        final ListenableFuture<GoodwillSchema> hit = accessor.getSchemaAsync(SCHEMA_NAME);
+        Assert.assertTrue(hit.isDone());
+        Assert.assertEquals(hit.get().getName(), SCHEMA_NAME);
+
+        // Misses don't block the caller while the cache is refreshed
+        jettyDelayInMillis = 500;
+        final ListenableFuture<GoodwillSchema> miss = accessor.getSchemaAsync("Doesn'tExist");
+        final ListenableFuture<GoodwillSchema> otherMiss = accessor.getSchemaAsync("NewOne");
+        Assert.assertFalse(miss.isDone());
+        Assert.assertNull(miss.get());
+        Assert.assertNull(otherMiss.get());
+        Assert.assertEquals(serversHits.get(), 2);
+
+        // Known missing names complete right away
+        Assert.assertTrue(accessor.getSchemaAsync("Doesn'tExist").isDone());
+        Assert.assertEquals(serversHits.get(), 2);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testAsyncRefreshKeepsCacheOnError() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, 3600);
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        final SchemataSnapshot snapshot = accessor.getSnapshot();
+        Assert.assertEquals(snapshot.getGeneration(), 1);
+
+        jettyShouldBomb = true;
+        Assert.assertSame(accessor.refreshAsync().get(), snapshot);
+        Assert.assertSame(accessor.getSnapshot(), snapshot);
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
 
         accessor.close();
     }
+
+    @Test(groups = "slow")
+    public void testStats() throws Exception
+    {
+        final String jmxObjectName = "com.ning.metrics.goodwill:name=CachingGoodwillAccessorTest";
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setJmxObjectName(jmxObjectName));
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+
+        final CachingGoodwillAccessorStats stats = accessor.getStats();
+        Assert.assertEquals(stats.getScheduledRefreshes(), 1);
+        Assert.assertEquals(stats.getRefreshesUpdated(), 1);
+        Assert.assertEquals(stats.getRefreshLatency().getCount(), 1);
+        Assert.assertEquals(stats.getCachedSchemata(), 1);
+        Assert.assertTrue(stats.getEstimatedRetainedSizeInBytes() > 0);
+        Assert.assertTrue(stats.getStalenessInMillis() >= 0);
+        Assert.assertEquals(stats.getHttpStats().getRequests(), 1);
+        Assert.assertTrue(stats.getHttpStats().getBytesDownloaded() > 0);
+
+        accessor.getSchema(SCHEMA_NAME);
+        accessor.getSchema(SCHEMA_NAME);
+        accessor.getSchema("Doesn'tExist");
+        accessor.getSchema("Doesn'tExist");
+        Assert.assertEquals(stats.getHits(), 2);
+        Assert.assertEquals(stats.getMisses(), 1);
+        Assert.assertEquals(stats.getNegativeHits(), 1);
+        Assert.assertEquals(stats.getMissRefreshes(), 1);
+        Assert.assertEquals(stats.getNegativeCacheSize(), 1);
+
+        jettyShouldBomb = true;
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(stats.getExplicitRefreshes(), 1);
+        Assert.assertEquals(stats.getRefreshFailures(), 1);
+        Assert.assertEquals(stats.getHttpStats().getHttpErrors(), 1);
+
+        // Published over JMX until closed
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertEquals(server.getAttribute(new ObjectName(jmxObjectName), "Hits"), 2L);
+        Assert.assertEquals(server.getAttribute(new ObjectName(jmxObjectName + ",component=http"), "HttpErrors"), 1L);
+
+        // The name is taken: another accessor doesn't get it, and closing it leaves ours registered
+        final CachingGoodwillAccessor other = new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setJmxObjectName(jmxObjectName));
+        other.close();
+        Assert.assertEquals(server.getAttribute(new ObjectName(jmxObjectName), "Hits"), 2L);
+
+        accessor.close();
+        Assert.assertFalse(server.isRegistered(new ObjectName(jmxObjectName)));
+        Assert.assertFalse(server.isRegistered(new ObjectName(jmxObjectName + ",component=http")));
+    }
+
+    @Test(groups = "slow")
+    public void testSharedScheduler() throws Exception
+    {
+        final int users = RefreshScheduler.getUsers();
+
+        final List<CachingGoodwillAccessor> accessors = new ArrayList<CachingGoodwillAccessor>();
+        for (int i = 0; i < 3; i++) {
+            accessors.add(new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+                .setCacheTimeoutInSeconds(3600)
+                .setRefreshPhaseOffsetInMillis(CachingGoodwillAccessorConfig.RANDOM_REFRESH_PHASE_OFFSET)));
+        }
+        Assert.assertEquals(RefreshScheduler.getUsers(), users + 3);
+
+        // Each accessor is warmed up by the shared scheduler
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 3);
+        for (final CachingGoodwillAccessor accessor : accessors) {
+            Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+        }
+
+        for (final CachingGoodwillAccessor accessor : accessors) {
+            accessor.close();
+        }
+        // Closing twice doesn't deregister twice
+        accessors.get(0).close();
+        Assert.assertEquals(RefreshScheduler.getUsers(), users);
+    }
+
+    @Test(groups = "slow")
+    public void testLookupsAfterClose() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, new GoodwillAccessorConfig()
+            .setHedgeQuantile(0.9), new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600));
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        accessor.close();
+
+        // Lookups are still served from the cache, without refreshing it
+        final SchemataSnapshot snapshot = accessor.getSnapshot();
+        Assert.assertSame(accessor.refreshAsync().get(), snapshot);
+        Assert.assertNotNull(accessor.getSchemaAsync(SCHEMA_NAME).get());
+        Assert.assertNull(accessor.getSchemaAsync("Doesn'tExist").get());
+        Assert.assertEquals(serversHits.get(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testOnlyPollingDrivesTheRefreshInterval() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(60)
+            .setMinRefreshIntervalInSeconds(60)
+            .setMaxRefreshIntervalInSeconds(3600)
+            .setMinMissRefreshIntervalInMillis(0)
+            .setNegativeCacheTtlInMillis(0));
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(accessor.getRefreshIntervalInMillis(), 60000);
+
+        // Refreshes triggered by misses find nothing new, without backing off the polling
+        accessor.getSchema("Doesn'tExist");
+        accessor.getSchema("Doesn'tExist");
+        Assert.assertEquals(accessor.getStats().getMissRefreshes(), 2);
+        Assert.assertEquals(accessor.getRefreshIntervalInMillis(), 60000);
+
+        accessor.refreshSchemataCache();
+        Assert.assertEquals(accessor.getRefreshIntervalInMillis(), 120000);
+        accessor.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshJitter() throws Exception
+    {
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            final long delay = CachingGoodwillAccessor.jitter(1000, 0.1, random);
+            Assert.assertTrue(delay >= 900 && delay <= 1100, "Delay out of bounds: " + delay);
+        }
+        Assert.assertEquals(CachingGoodwillAccessor.jitter(1000, 0, random), 1000);
+    }
+
+    @Test(groups = "slow")
+    public void testStaleWhileRevalidate() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setSoftTtlInMillis(500));
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+        final long validationTimeInMillis = accessor.getSnapshot().getValidationTimeInMillis();
+
+        // Past the soft TTL, the stale schema is returned right away...
+        jettyDelayInMillis = 500;
+        final long start = System.currentTimeMillis();
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+        Assert.assertTrue(System.currentTimeMillis() - start < 250);
+
+        // ...and the cache revalidated in the background
+        Thread.sleep(1000);
+        Assert.assertEquals(serversHits.get(), 2);
+        Assert.assertEquals(accessor.getStats().getStaleRefreshes(), 1);
+        Assert.assertTrue(accessor.getSnapshot().getValidationTimeInMillis() > validationTimeInMillis);
+        Assert.assertTrue(accessor.getSnapshot().getLoadTimeInMillis(SCHEMA_NAME) > 0);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testHardTtl() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setHardTtlInMillis(500));
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+
+        // Past the hard TTL, the caller waits for the revalidation
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+        Assert.assertEquals(serversHits.get(), 2);
+
+        // If Goodwill is down, the stale schema is still served, without retrying on every lookup
+        Thread.sleep(1000);
+        jettyShouldBomb = true;
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+        Assert.assertEquals(serversHits.get(), 3);
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testMaxStaleness() throws Exception
+    {
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, 3600);
+        Thread.sleep(CACHE_TIMEOUT_IN_SECONDS * 1000 / 2);
+        Assert.assertEquals(serversHits.get(), 1);
+
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME, 60000));
+        Assert.assertEquals(serversHits.get(), 1);
+
+        // Too stale: revalidate first
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME, 100));
+        Assert.assertEquals(serversHits.get(), 2);
+
+        // Too stale, and Goodwill can't confirm it
+        Thread.sleep(200);
+        jettyShouldBomb = true;
+        Assert.assertNull(accessor.getSchema(SCHEMA_NAME, 100));
+        Assert.assertNotNull(accessor.getSchema(SCHEMA_NAME));
+
+        accessor.close();
+    }
+
+    @Test(groups = "slow")
+    public void testOnDemandLoading() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        for (int i = 0; i < 10; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+        }
+        goodwill.start();
+
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", goodwill.getPort(), new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setLoadingMode(CachingGoodwillAccessorConfig.LoadingMode.ON_DEMAND)
+            .setMaxCachedSchemata(2)
+            .setPinnedSchemata(Collections.singletonList("Schema0")));
+        try {
+            // Only the pinned schema is fetched upfront, the registry is never listed
+            Thread.sleep(500);
+            Assert.assertEquals(goodwill.hits.get(), 1);
+            Assert.assertEquals(accessor.getSchemata().size(), 1);
+
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(accessor.getSchema("Schema1").getName(), "Schema1");
+            }
+            Assert.assertEquals(goodwill.hits.get(), 2);
+            Assert.assertEquals(accessor.getSchemaAsync("Schema2").get().getName(), "Schema2");
+            Assert.assertNull(accessor.getSchema("Unknown"));
+            Assert.assertNull(accessor.getSchema("Unknown"));
+            Assert.assertEquals(goodwill.hits.get(), 4);
+
+            // Schema2 is the least used one: loading Schema3 evicts it, but not the pinned schema
+            Assert.assertEquals(accessor.getSchema("Schema3").getName(), "Schema3");
+            Assert.assertEquals(accessor.getStats().getCachedSchemata(), 3);
+            Assert.assertEquals(accessor.getSchema("Schema0").getName(), "Schema0");
+            Assert.assertEquals(accessor.getSchema("Schema1").getName(), "Schema1");
+            Assert.assertEquals(goodwill.hits.get(), 5);
+            Assert.assertEquals(accessor.getSchema("Schema2").getName(), "Schema2");
+            Assert.assertEquals(goodwill.hits.get(), 6);
+
+            // Refreshes reload the schemata in use only
+            goodwill.removeSchema("Schema0");
+            accessor.refreshSchemataCache();
+            Assert.assertEquals(goodwill.fullListings.get(), 0);
+            Assert.assertEquals(accessor.getSchemata().size(), 2);
+            Assert.assertEquals(accessor.getStats().getRefreshesUpdated(), 1);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testOnDemandEvictionKeepsNewSchema() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        for (int i = 0; i < 10; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+        }
+        goodwill.start();
+
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", goodwill.getPort(), new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(3600)
+            .setLoadingMode(CachingGoodwillAccessorConfig.LoadingMode.ON_DEMAND)
+            .setMaxCachedSchemata(3));
+        try {
+            // Fill the cache with warm schemata
+            for (int i = 1; i <= 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    Assert.assertEquals(accessor.getSchema("Schema" + i).getName(), "Schema" + i);
+                }
+            }
+            Assert.assertEquals(goodwill.hits.get(), 3);
+
+            // The new schema evicts a warm one, not itself
+            Assert.assertEquals(accessor.getSchema("Schema4").getName(), "Schema4");
+            Assert.assertEquals(accessor.getSchema("Schema4").getName(), "Schema4");
+            Assert.assertEquals(goodwill.hits.get(), 4);
+            Assert.assertEquals(accessor.getStats().getCachedSchemata(), 3);
+            Assert.assertEquals(accessor.getStats().getNegativeCacheSize(), 0);
+
+            // A failed load isn't mistaken for an unknown schema
+            goodwill.shouldBomb = true;
+            Assert.assertNull(accessor.getSchema("Schema5"));
+            goodwill.shouldBomb = false;
+            Assert.assertEquals(accessor.getSchema("Schema5").getName(), "Schema5");
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testWarmStartFromSnapshotFile() throws Exception
+    {
+        final File snapshotFile = File.createTempFile("goodwill-schemata", ".snapshot");
+        Assert.assertTrue(snapshotFile.delete());
+        final CachingGoodwillAccessorConfig config = new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(CACHE_TIMEOUT_IN_SECONDS)
+            .setSnapshotFile(snapshotFile);
+
+        try {
+            jettyETag = "\"v1\"";
+            CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, config);
+            Assert.assertTrue(accessor.awaitInitialLoad(5, TimeUnit.SECONDS));
+            Assert.assertEquals(accessor.getSchema(SCHEMA_NAME).getName(), SCHEMA_NAME);
+
+            // Saved in the background
+            for (int i = 0; i < 50 && !snapshotFile.isFile(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(snapshotFile.isFile());
+            accessor.close();
+
+            // Goodwill is down: the restored schemata are served right away
+            jettyShouldBomb = true;
+            accessor = new CachingGoodwillAccessor("127.0.0.1", port, config);
+            Assert.assertTrue(accessor.awaitInitialLoad(0, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(accessor.getSchema(SCHEMA_NAME).getName(), SCHEMA_NAME);
+            Assert.assertEquals(accessor.getStats().getMissRefreshes(), 0);
+            accessor.close();
+
+            // Goodwill is back: the first refresh only revalidates the restored schemata
+            jettyShouldBomb = false;
+            accessor = new CachingGoodwillAccessor("127.0.0.1", port, config);
+            accessor.refreshSchemataCache();
+            Assert.assertEquals(accessor.getSnapshot().getETag(), jettyETag);
+            Assert.assertEquals(accessor.getSnapshot().getGeneration(), 1);
+            Assert.assertEquals(accessor.getStats().getRefreshesUpdated(), 0);
+            accessor.close();
+        }
+        finally {
+            snapshotFile.delete();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testAwaitInitialLoad() throws Exception
+    {
+        jettyShouldBomb = true;
+        final CachingGoodwillAccessor accessor = new CachingGoodwillAccessor("127.0.0.1", port, CACHE_TIMEOUT_IN_SECONDS);
+        try {
+            Assert.assertFalse(accessor.awaitInitialLoad(500, TimeUnit.MILLISECONDS));
+
+            jettyShouldBomb = false;
+            accessor.refreshSchemataCache();
+            Assert.assertTrue(accessor.awaitInitialLoad(0, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            accessor.close();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testSharedSnapshotFile() throws Exception
+    {
+        final File snapshotFile = File.createTempFile("goodwill-schemata", ".snapshot");
+        Assert.assertTrue(snapshotFile.delete());
+        final CachingGoodwillAccessorConfig config = new CachingGoodwillAccessorConfig()
+            .setCacheTimeoutInSeconds(60)
+            .setSnapshotFile(snapshotFile)
+            .setSnapshotFileShared(true)
+            .setSharedSnapshotCheckIntervalInMillis(100);
+
+        final CachingGoodwillAccessor publisher = new CachingGoodwillAccessor("127.0.0.1", port, config);
+        CachingGoodwillAccessor follower = null;
+        try {
+            Assert.assertTrue(publisher.awaitInitialLoad(5, TimeUnit.SECONDS));
+            Assert.assertTrue(publisher.getStats().isSnapshotPublisher());
+            for (int i = 0; i < 50 && !snapshotFile.isFile(); i++) {
+                Thread.sleep(100);
+            }
+
+            // The lock is held by the publisher: the follower reads the file, and never calls Goodwill
+            final int hits = serversHits.get();
+            follower = new CachingGoodwillAccessor("127.0.0.1", port, config);
+            Assert.assertTrue(follower.awaitInitialLoad(5, TimeUnit.SECONDS));
+            Assert.assertFalse(follower.getStats().isSnapshotPublisher());
+            Assert.assertEquals(follower.getSchema(SCHEMA_NAME).getName(), SCHEMA_NAME);
+            follower.refreshSchemataCache();
+            Assert.assertEquals(serversHits.get(), hits);
+
+            // The publisher goes away: the follower takes over on its next check
+            publisher.close();
+            for (int i = 0; i < 50 && !follower.getStats().isSnapshotPublisher(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(follower.getStats().isSnapshotPublisher());
+            follower.refreshSchemataCache();
+            Assert.assertTrue(serversHits.get() > hits);
+        }
+        finally {
+            publisher.close();
+            if (follower != null) {
+                follower.close();
+            }
+            snapshotFile.delete();
+            new File(snapshotFile.getPath() + ".lock").delete();
+        }
+    }
 }
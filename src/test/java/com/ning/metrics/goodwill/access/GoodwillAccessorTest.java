@@ -19,11 +19,21 @@ package com.ning.metrics.goodwill.access;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationConfig;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.ning.http.client.AsyncHttpClient;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GoodwillAccessorTest
 {
@@ -69,4 +79,388 @@ public class GoodwillAccessorTest
 
         accessor.close();
     }
+
+    @Test(groups = "slow")
+    public void testStreamingSchemata() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        for (int i = 0; i < 100; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+        }
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort());
+        try {
+            final List<String> names = new ArrayList<String>();
+            final int count = accessor.getSchemata(new GoodwillSchemaConsumer()
+            {
+                @Override
+                public void accept(final GoodwillSchema schema)
+                {
+                    names.add(schema.getName());
+                }
+            }).get();
+
+            Assert.assertEquals(count, 100);
+            Assert.assertEquals(names.size(), 100);
+            Assert.assertEquals(names.get(0), "Schema0");
+            Assert.assertEquals(names.get(99), "Schema99");
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testMaxPayloadSize() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        for (int i = 0; i < 100; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+        }
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig().setMaxPayloadSizeInBytes(1024));
+        try {
+            accessor.getSchemata().get();
+            Assert.fail("The listing should have been rejected");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(true);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testUnknownSchema() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort());
+        try {
+            Assert.assertEquals(accessor.getSchema("Known").get().getName(), "Known");
+            Assert.assertNull(accessor.getSchema("Unknown").get());
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testDecodeExecutor() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.start();
+
+        final ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+        final AtomicInteger decodes = new AtomicInteger(0);
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig().setDecodeExecutor(new Executor()
+        {
+            @Override
+            public void execute(final Runnable command)
+            {
+                decodes.incrementAndGet();
+                decodeExecutor.execute(command);
+            }
+        }));
+        try {
+            Assert.assertEquals(accessor.getSchemata().get().size(), 1);
+            Assert.assertEquals(accessor.getSchema("Known").get().getName(), "Known");
+
+            Assert.assertEquals(decodes.get(), 2);
+            Assert.assertEquals(accessor.getStats().getDecodes(), 2);
+            Assert.assertTrue(accessor.getStats().getDecodeTimeInNanos() > 0);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+
+        // The executor belongs to the caller
+        Assert.assertFalse(decodeExecutor.isShutdown());
+        decodeExecutor.shutdown();
+    }
+
+    @Test(groups = "slow")
+    public void testRequestListener() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.start();
+
+        final List<GoodwillRequestTimings> timings = new CopyOnWriteArrayList<GoodwillRequestTimings>();
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort());
+        try {
+            // No listener, nothing reported
+            accessor.getSchema("Known").get();
+
+            final GoodwillRequestListener listener = new GoodwillRequestListener()
+            {
+                @Override
+                public void onRequestCompleted(final GoodwillRequestTimings requestTimings)
+                {
+                    timings.add(requestTimings);
+                }
+            };
+            accessor.addRequestListener(listener);
+            accessor.getSchema("Known").get();
+            accessor.getSchema("Unknown").get();
+
+            Assert.assertEquals(timings.size(), 2);
+            final GoodwillRequestTimings found = timings.get(0);
+            Assert.assertEquals(found.getOperation(), "getSchema");
+            Assert.assertEquals(found.getStatusCode(), 200);
+            Assert.assertTrue(found.getPayloadSizeInBytes() > 0);
+            Assert.assertTrue(found.getTimeToFirstByteInNanos() >= 0);
+            Assert.assertTrue(found.getDecodeTimeInNanos() >= 0);
+            Assert.assertTrue(found.getTotalTimeInNanos() >= found.getTimeToFirstByteInNanos());
+            Assert.assertNull(found.getFailure());
+            Assert.assertEquals(timings.get(1).getStatusCode(), 404);
+
+            accessor.removeRequestListener(listener);
+            accessor.getSchema("Known").get();
+            Assert.assertEquals(timings.size(), 2);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testInFlightLimit() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.delayInMillis = 200;
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig().setMaxInFlightRequests(1));
+        try {
+            final List<Future<GoodwillSchema>> lookups = new ArrayList<Future<GoodwillSchema>>();
+            for (int i = 0; i < 3; i++) {
+                lookups.add(accessor.getSchema("Known"));
+            }
+
+            // Excess calls wait for a slot instead of opening more connections
+            Assert.assertEquals(accessor.getQueuedRequests(), 2);
+            for (final Future<GoodwillSchema> lookup : lookups) {
+                Assert.assertEquals(lookup.get().getName(), "Known");
+            }
+            Assert.assertEquals(accessor.getQueuedRequests(), 0);
+            Assert.assertEquals(accessor.getStats().getRequests(), 3);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testSharedHttpClient() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.start();
+
+        final AsyncHttpClient client = new AsyncHttpClient();
+        final GoodwillAccessor first = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig().setHttpClient(client));
+        final GoodwillAccessor second = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig().setHttpClient(client));
+        try {
+            Assert.assertEquals(first.getSchema("Known").get().getName(), "Known");
+            first.close();
+
+            // The client belongs to the caller
+            Assert.assertFalse(client.isClosed());
+            Assert.assertEquals(second.getSchema("Known").get().getName(), "Known");
+        }
+        finally {
+            second.close();
+            client.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testMultiGet() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+            names.add("Schema" + i);
+        }
+        names.add("Unknown");
+        goodwill.delayInMillis = 50;
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig().setMaxParallelLookups(4));
+        try {
+            final long startedAt = System.currentTimeMillis();
+            final Map<String, GoodwillSchema> schemata = accessor.getSchemas(names).get();
+            Assert.assertEquals(schemata.size(), 20);
+            Assert.assertEquals(schemata.get("Schema7").getName(), "Schema7");
+            Assert.assertFalse(schemata.containsKey("Unknown"));
+            Assert.assertEquals(goodwill.hits.get(), 21);
+
+            // 4 at a time: 6 round trips instead of 21
+            Assert.assertTrue(System.currentTimeMillis() - startedAt < 21 * 50);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testBulkMultiGet() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+            names.add("Schema" + i);
+        }
+        goodwill.supportsBulk = true;
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig()
+            .setBulkLookupsEnabled(true)
+            .setMaxNamesPerBulkLookup(8));
+        try {
+            Assert.assertEquals(accessor.getSchemas(names).get().size(), 20);
+            Assert.assertEquals(goodwill.bulkLookups.get(), 3);
+            Assert.assertEquals(goodwill.hits.get(), 3);
+
+            // Servers rejecting bulk lookups: fall back to one call per schema, from then on
+            goodwill.rejectsBulk = true;
+            Assert.assertEquals(accessor.getSchemas(names.subList(0, 5)).get().size(), 5);
+            Assert.assertEquals(goodwill.hits.get(), 3 + 1 + 5);
+            Assert.assertEquals(accessor.getSchemas(names.subList(0, 5)).get().size(), 5);
+            Assert.assertEquals(goodwill.hits.get(), 3 + 1 + 5 + 5);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testReplicas() throws Exception
+    {
+        final GoodwillServerStandIn slow = new GoodwillServerStandIn();
+        final GoodwillServerStandIn fast = new GoodwillServerStandIn();
+        for (final GoodwillServerStandIn goodwill : Arrays.asList(slow, fast)) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+            goodwill.start();
+        }
+        slow.delayInMillis = 100;
+
+        final GoodwillAccessor accessor = new GoodwillAccessor(Arrays.asList("127.0.0.1:" + slow.getPort(), "127.0.0.1:" + fast.getPort()), new GoodwillAccessorConfig());
+        try {
+            for (int i = 0; i < 40; i++) {
+                Assert.assertEquals(accessor.getSchema("Known").get().getName(), "Known");
+            }
+
+            // The slow replica is only tried until its latency is known
+            Assert.assertEquals(slow.hits.get() + fast.hits.get(), 40);
+            Assert.assertTrue(slow.hits.get() <= 5, String.format("%d calls to the slow replica", slow.hits.get()));
+        }
+        finally {
+            accessor.close();
+            slow.stop();
+            fast.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testHedging() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig()
+            .setHedgeQuantile(0.9)
+            .setMinHedgeDelayInMs(50));
+        try {
+            // Learn the latency distribution first
+            for (int i = 0; i < 30; i++) {
+                accessor.getSchema("Known").get();
+            }
+            Assert.assertEquals(accessor.getStats().getHedgedRequests(), 0);
+
+            goodwill.slowRequests.set(1);
+            goodwill.slowRequestDelayInMillis = 5000;
+            final long startedAt = System.currentTimeMillis();
+            Assert.assertEquals(accessor.getSchema("Known").get().getName(), "Known");
+            Assert.assertTrue(System.currentTimeMillis() - startedAt < 2500);
+            Assert.assertEquals(accessor.getStats().getHedgedRequests(), 1);
+            Assert.assertEquals(accessor.getStats().getHedgeWins(), 1);
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testCircuitBreaker() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Known"));
+        goodwill.shouldBomb = true;
+        goodwill.start();
+
+        final GoodwillAccessor accessor = new GoodwillAccessor("127.0.0.1", goodwill.getPort(), new GoodwillAccessorConfig()
+            .setCircuitBreakerFailureThreshold(3)
+            .setCircuitBreakerOpenDurationInMs(300));
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    accessor.getSchema("Known").get();
+                    Assert.fail("Goodwill is down");
+                }
+                catch (ExecutionException e) {
+                    Assert.assertFalse(e.getCause() instanceof GoodwillUnavailableException);
+                }
+            }
+            Assert.assertEquals(accessor.getCircuitState(), GoodwillCircuitState.OPEN);
+
+            // Fail fast, without calling Goodwill
+            try {
+                accessor.getSchema("Known").get();
+                Assert.fail("The circuit is open");
+            }
+            catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof GoodwillUnavailableException);
+            }
+            Assert.assertEquals(goodwill.hits.get(), 3);
+            Assert.assertEquals(accessor.getStats().getRejectedRequests(), 1);
+
+            // The probe fails: the circuit stays open
+            Thread.sleep(450);
+            Assert.assertEquals(goodwill.hits.get(), 4);
+            Assert.assertEquals(accessor.getCircuitState(), GoodwillCircuitState.OPEN);
+
+            // The next one succeeds
+            goodwill.shouldBomb = false;
+            Thread.sleep(300);
+            Assert.assertEquals(goodwill.hits.get(), 5);
+            Assert.assertEquals(accessor.getCircuitState(), GoodwillCircuitState.CLOSED);
+            Assert.assertEquals(accessor.getSchema("Known").get().getName(), "Known");
+        }
+        finally {
+            accessor.close();
+            goodwill.stop();
+        }
+    }
 }
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal Goodwill server for tests: a mutable registry served over /registrar, with optional support
+ * for incremental sync (the cursor is the registry version) and long-polls (wait parameter).
+ */
+class GoodwillServerStandIn
+{
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, GoodwillSchema> schemata = new LinkedHashMap<String, GoodwillSchema>();
+    // Version at which each schema was last added or removed
+    private final Map<String, Long> addedAt = new HashMap<String, Long>();
+    private final Map<String, Long> removedAt = new HashMap<String, Long>();
+    private long version = 0;
+
+    final AtomicInteger hits = new AtomicInteger(0);
+    final AtomicInteger fullListings = new AtomicInteger(0);
+    final AtomicInteger deltaListings = new AtomicInteger(0);
+    final AtomicInteger bulkLookups = new AtomicInteger(0);
+    final AtomicInteger longPolls = new AtomicInteger(0);
+
+    volatile boolean supportsDelta = true;
+    // Answer 410 Gone to incremental sync requests, e.g. for an expired cursor
+    volatile boolean deltaGone = false;
+    // Serve /registrar?name=...&name=... (otherwise, the names are ignored)
+    volatile boolean supportsBulk = false;
+    // Answer 400 Bad Request to bulk lookups, like servers validating their parameters
+    volatile boolean rejectsBulk = false;
+    // Hold incremental sync requests with a wait parameter until the registry changes (otherwise, answer right away)
+    volatile boolean supportsLongPoll = true;
+    volatile boolean shouldBomb = false;
+    volatile long delayInMillis = 0;
+    // Delay the next slowRequests requests only, e.g. to trigger hedging
+    final AtomicInteger slowRequests = new AtomicInteger(0);
+    volatile long slowRequestDelayInMillis = 0;
+
+    private int port;
+    private SocketConnector connector;
+    private Server server;
+
+    void start() throws Exception
+    {
+        port = findFreePort();
+        connector = new SocketConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(port);
+
+        server = new Server()
+        {
+            @Override
+            public void handle(final AbstractHttpConnection connection) throws IOException, ServletException
+            {
+                hits.incrementAndGet();
+                final long delay = slowRequests.getAndDecrement() > 0 ? slowRequestDelayInMillis : delayInMillis;
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                final Request request = connection.getRequest();
+                final Response response = connection.getResponse();
+                try {
+                    if (shouldBomb) {
+                        response.setStatus(500);
+                    }
+                    else if (!awaitChanges(request)) {
+                        response.setStatus(304);
+                    }
+                    else {
+                        serve(request, response);
+                    }
+                }
+                finally {
+                    request.setHandled(true);
+                }
+            }
+        };
+        server.setThreadPool(new ExecutorThreadPool());
+        server.addConnector(connector);
+        connector.start();
+        server.start();
+    }
+
+    void stop() throws Exception
+    {
+        server.stop();
+        connector.stop();
+    }
+
+    int getPort()
+    {
+        return port;
+    }
+
+    synchronized void addSchema(final GoodwillSchema schema)
+    {
+        version++;
+        schemata.put(schema.getName(), schema);
+        addedAt.put(schema.getName(), version);
+        removedAt.remove(schema.getName());
+        notifyAll();
+    }
+
+    synchronized void removeSchema(final String schemaName)
+    {
+        version++;
+        schemata.remove(schemaName);
+        addedAt.remove(schemaName);
+        removedAt.put(schemaName, version);
+        notifyAll();
+    }
+
+    /**
+     * Move the registry version forward without changing any schema, e.g. for changes the client can't see
+     */
+    synchronized void bumpVersion()
+    {
+        version++;
+        notifyAll();
+    }
+
+    /**
+     * @return false if the request is a long-poll which timed out without changes
+     */
+    private boolean awaitChanges(final Request request)
+    {
+        final String since = request.getParameter("since");
+        final String waitInMillis = request.getParameter("wait");
+        if (since == null || waitInMillis == null || !supportsLongPoll || !supportsDelta || deltaGone) {
+            return true;
+        }
+
+        longPolls.incrementAndGet();
+        final long sinceVersion = Long.parseLong(since);
+        final long deadline = System.currentTimeMillis() + Long.parseLong(waitInMillis);
+        synchronized (this) {
+            long remaining = deadline - System.currentTimeMillis();
+            while (version <= sinceVersion && remaining > 0) {
+                try {
+                    wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return version > sinceVersion;
+        }
+    }
+
+    static GoodwillSchema createSchema(final String schemaName)
+    {
+        final List<GoodwillSchemaField> items = new ArrayList<GoodwillSchemaField>();
+        items.add(new GoodwillSchemaField("field", "STRING", (short) 1, null, "string", null, null, null));
+        return new GoodwillSchema(schemaName, items);
+    }
+
+    private synchronized void serve(final Request request, final Response response) throws IOException
+    {
+        final String path = request.getRequestURI();
+        if (path.startsWith("/registrar/")) {
+            final GoodwillSchema schema = schemata.get(path.substring("/registrar/".length()));
+            if (schema == null) {
+                response.setStatus(404);
+            }
+            else {
+                response.setStatus(200);
+                response.getWriter().print(mapper.writeValueAsString(schema));
+            }
+            return;
+        }
+
+        final Map<String, Object> payload = new HashMap<String, Object>();
+        final String[] names = request.getParameterValues("name");
+        if (names != null && rejectsBulk) {
+            response.setStatus(400);
+            return;
+        }
+        if (names != null && supportsBulk) {
+            final List<GoodwillSchema> found = new ArrayList<GoodwillSchema>();
+            for (final String name : names) {
+                if (schemata.containsKey(name)) {
+                    found.add(schemata.get(name));
+                }
+            }
+
+            bulkLookups.incrementAndGet();
+            payload.put("types", found);
+            response.setStatus(200);
+            response.getWriter().print(mapper.writeValueAsString(payload));
+            return;
+        }
+
+        final String since = request.getParameter("since");
+        if (since != null && supportsDelta) {
+            if (deltaGone) {
+                response.setStatus(410);
+                return;
+            }
+
+            final long sinceVersion = Long.parseLong(since);
+            final List<GoodwillSchema> changed = new ArrayList<GoodwillSchema>();
+            for (final Map.Entry<String, Long> entry : addedAt.entrySet()) {
+                if (entry.getValue() > sinceVersion) {
+                    changed.add(schemata.get(entry.getKey()));
+                }
+            }
+            final Set<String> removed = new LinkedHashSet<String>();
+            for (final Map.Entry<String, Long> entry : removedAt.entrySet()) {
+                if (entry.getValue() > sinceVersion) {
+                    removed.add(entry.getKey());
+                }
+            }
+
+            deltaListings.incrementAndGet();
+            payload.put("delta", true);
+            payload.put("types", changed);
+            payload.put("removed", removed);
+        }
+        else {
+            fullListings.incrementAndGet();
+            payload.put("types", new ArrayList<GoodwillSchema>(schemata.values()));
+        }
+
+        if (supportsDelta) {
+            payload.put("cursor", String.valueOf(version));
+        }
+
+        response.setStatus(200);
+        response.getWriter().print(mapper.writeValueAsString(payload));
+    }
+
+    private static int findFreePort() throws IOException
+    {
+        ServerSocket socket = null;
+
+        try {
+            socket = new ServerSocket(0);
+
+            return socket.getLocalPort();
+        }
+        finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest
+{
+    @Test(groups = "fast")
+    public void testEmpty() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getCount(), 0);
+        Assert.assertEquals(histogram.getMeanInMillis(), 0.0);
+        Assert.assertEquals(histogram.getPercentileInMillis(0.99), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testPercentiles() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(150);
+        histogram.record(120000);
+
+        Assert.assertEquals(histogram.getCount(), 100);
+        Assert.assertEquals(histogram.getMaxInMillis(), 120000);
+        Assert.assertEquals(histogram.getPercentileInMillis(0.5), 5);
+        Assert.assertEquals(histogram.getPercentileInMillis(0.99), 200);
+        Assert.assertEquals(histogram.getPercentileInMillis(1), 120000);
+
+        final long[] counts = histogram.getBucketCounts();
+        Assert.assertEquals(counts.length, histogram.getBucketBoundsInMillis().length + 1);
+        Assert.assertEquals(counts[counts.length - 1], 1);
+    }
+}
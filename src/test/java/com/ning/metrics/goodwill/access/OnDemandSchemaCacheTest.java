@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class OnDemandSchemaCacheTest
+{
+    @Test(groups = "slow")
+    public void testPrefetch() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        goodwill.addSchema(GoodwillServerStandIn.createSchema("Pinned"));
+        goodwill.start();
+
+        final GoodwillAccessor delegate = new GoodwillAccessor("127.0.0.1", goodwill.getPort());
+        try {
+            Assert.assertEquals(createCache(delegate, "Pinned", "Missing").prefetch().get(), Boolean.TRUE);
+
+            // Goodwill answered: the pinned names don't exist, which isn't a failure
+            Assert.assertEquals(createCache(delegate, "Missing").prefetch().get(), Boolean.FALSE);
+            Assert.assertEquals(createCache(delegate).prefetch().get(), Boolean.FALSE);
+
+            goodwill.shouldBomb = true;
+            Assert.assertNull(createCache(delegate, "Pinned", "Missing").prefetch().get());
+        }
+        finally {
+            delegate.close();
+            goodwill.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testEvictionSparesHotSchemata() throws Exception
+    {
+        final GoodwillServerStandIn goodwill = new GoodwillServerStandIn();
+        for (int i = 0; i < 100; i++) {
+            goodwill.addSchema(GoodwillServerStandIn.createSchema("Schema" + i));
+        }
+        goodwill.start();
+
+        final GoodwillAccessor delegate = new GoodwillAccessor("127.0.0.1", goodwill.getPort());
+        try {
+            final OnDemandSchemaCache cache = createCache(delegate, "Schema0");
+            cache.load("Schema0").get();
+            cache.load("Schema1").get();
+            for (int i = 0; i < 10; i++) {
+                cache.get("Schema1");
+            }
+
+            // The cache is much larger than the eviction sample: cold schemata still go first
+            for (int i = 2; i < 100; i++) {
+                Assert.assertEquals(cache.load("Schema" + i).get().getName(), "Schema" + i);
+                Assert.assertTrue(cache.size() <= 21);
+                cache.get("Schema1");
+            }
+            Assert.assertNotNull(cache.get("Schema0"));
+            Assert.assertNotNull(cache.get("Schema1"));
+            Assert.assertNotNull(cache.get("Schema99"));
+        }
+        finally {
+            delegate.close();
+            goodwill.stop();
+        }
+    }
+
+    private OnDemandSchemaCache createCache(final GoodwillAccessor delegate, final String... pinnedSchemata)
+    {
+        return new OnDemandSchemaCache(delegate, new SchemaInterner(), 20, Arrays.asList(pinnedSchemata), new NegativeCache(30000, 100));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RefreshPolicyTest
+{
+    @Test(groups = "fast")
+    public void testBackoffAndReset() throws Exception
+    {
+        final RefreshPolicy policy = new RefreshPolicy(1000, 10000, 2, 3000);
+        Assert.assertEquals(policy.getIntervalInMillis(), 3000);
+
+        // Nothing changes: back off, up to the maximum
+        policy.onRefreshCompleted(false);
+        Assert.assertEquals(policy.getIntervalInMillis(), 6000);
+        policy.onRefreshCompleted(false);
+        Assert.assertEquals(policy.getIntervalInMillis(), 10000);
+        policy.onRefreshCompleted(false);
+        Assert.assertEquals(policy.getIntervalInMillis(), 10000);
+
+        // A change: back to the minimum
+        policy.onRefreshCompleted(true);
+        Assert.assertEquals(policy.getIntervalInMillis(), 1000);
+
+        // Failures back off too
+        policy.onRefreshCompleted(false);
+        Assert.assertEquals(policy.getIntervalInMillis(), 2000);
+    }
+
+    @Test(groups = "fast")
+    public void testFixedInterval() throws Exception
+    {
+        final RefreshPolicy policy = new RefreshPolicy(3000, 3000, 2, 3000);
+        policy.onRefreshCompleted(false);
+        Assert.assertEquals(policy.getIntervalInMillis(), 3000);
+        policy.onRefreshCompleted(true);
+        Assert.assertEquals(policy.getIntervalInMillis(), 3000);
+    }
+}
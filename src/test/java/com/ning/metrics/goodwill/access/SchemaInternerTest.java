@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SchemaInternerTest
+{
+    @Test(groups = "fast")
+    public void testUnchangedSchemaIsReused()
+    {
+        final SchemaInterner interner = new SchemaInterner();
+        final GoodwillSchema cached = interner.intern(createSchema("Visit", "nvarchar"), null);
+
+        // Same definition, decoded again
+        final GoodwillSchema decoded = createSchema("Visit", "nvarchar");
+        Assert.assertNotSame(decoded, cached);
+        Assert.assertSame(interner.intern(decoded, cached), cached);
+    }
+
+    @Test(groups = "fast")
+    public void testUnchangedFieldsAreReused()
+    {
+        final SchemaInterner interner = new SchemaInterner();
+        final GoodwillSchema cached = interner.intern(createSchema("Visit", "nvarchar"), null);
+
+        // Same schema, with the SQL type of the second field changed
+        final GoodwillSchema interned = interner.intern(createSchema("Visit", "varchar"), cached);
+        Assert.assertNotSame(interned, cached);
+        Assert.assertSame(interned.getFieldByPosition((short) 1), cached.getFieldByPosition((short) 1));
+        Assert.assertNotSame(interned.getFieldByPosition((short) 2), cached.getFieldByPosition((short) 2));
+        Assert.assertEquals(interned.getFieldByPosition((short) 2).getSql().getType(), "varchar");
+    }
+
+    @Test(groups = "fast")
+    public void testStringsAreShared()
+    {
+        final SchemaInterner interner = new SchemaInterner();
+        final GoodwillSchema first = interner.intern(createSchema("Visit", new String("nvarchar")), null);
+        final GoodwillSchema second = interner.intern(createSchema("Click", new String("nvarchar")), null);
+
+        Assert.assertSame(first.getFieldByPosition((short) 2).getSql().getType(), second.getFieldByPosition((short) 2).getSql().getType());
+        Assert.assertSame(first.getFieldByPosition((short) 1).getName(), second.getFieldByPosition((short) 1).getName());
+    }
+
+    private GoodwillSchema createSchema(final String name, final String sqlType)
+    {
+        final List<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>();
+        fields.add(new GoodwillSchemaField(new String("id"), "string", (short) 1, "Event id", "bigint", null, null, null));
+        fields.add(new GoodwillSchemaField(new String("path"), "string", (short) 2, "Visited path", sqlType, 255, null, null));
+        return new GoodwillSchema(name, fields, null);
+    }
+}
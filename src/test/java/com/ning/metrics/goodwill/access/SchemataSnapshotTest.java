@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class SchemataSnapshotTest
+{
+    @Test(groups = "fast")
+    public void testDeltasMatchFullListings()
+    {
+        final SchemaInterner interner = new SchemaInterner();
+        final Map<String, GoodwillSchema> registry = new HashMap<String, GoodwillSchema>();
+        for (int i = 0; i < 500; i++) {
+            registry.put("Schema" + i, createSchema("Schema" + i, "string"));
+        }
+        SchemataSnapshot snapshot = SchemataSnapshot.EMPTY.next(new SchemataResponse(new ArrayList<GoodwillSchema>(registry.values()), null, null, "0"), interner);
+
+        // Enough small deltas to go through several compactions
+        final Random random = new Random(42);
+        for (int version = 1; version <= 300; version++) {
+            final String name = "Schema" + random.nextInt(600);
+            final List<GoodwillSchema> changed = new ArrayList<GoodwillSchema>();
+            final List<String> removed = new ArrayList<String>();
+            if (random.nextInt(3) == 0) {
+                registry.remove(name);
+                removed.add(name);
+            }
+            else {
+                final GoodwillSchema schema = createSchema(name, random.nextBoolean() ? "string" : "bigint");
+                registry.put(name, schema);
+                changed.add(schema);
+            }
+
+            final SchemataSnapshot previous = snapshot;
+            snapshot = snapshot.next(SchemataResponse.delta(changed, removed, String.valueOf(version)), interner);
+            Assert.assertEquals(snapshot.getGeneration(), previous.getGeneration() + 1);
+            Assert.assertEquals(snapshot.size(), registry.size());
+            Assert.assertEquals(snapshot.getSchemata().size(), registry.size());
+            Assert.assertEquals(snapshot.getCursor(), String.valueOf(version));
+        }
+
+        for (final Map.Entry<String, GoodwillSchema> entry : registry.entrySet()) {
+            Assert.assertTrue(snapshot.getSchema(entry.getKey()).hasSameDefinition(entry.getValue()));
+        }
+        for (final GoodwillSchema schema : snapshot.getSchemata()) {
+            Assert.assertTrue(registry.containsKey(schema.getName()));
+        }
+        Assert.assertNull(snapshot.getSchema("Schema600"));
+    }
+
+    @Test(groups = "fast")
+    public void testUnchangedSchemataAreShared()
+    {
+        final SchemaInterner interner = new SchemaInterner();
+        final List<GoodwillSchema> schemata = new ArrayList<GoodwillSchema>();
+        schemata.add(createSchema("Visit", "string"));
+        schemata.add(createSchema("Click", "string"));
+        final SchemataSnapshot first = SchemataSnapshot.EMPTY.next(new SchemataResponse(schemata, null, null, "1"), interner);
+
+        final SchemataSnapshot second = first.next(SchemataResponse.delta(Collections.singletonList(createSchema("Click", "bigint")),
+            Collections.singletonList("Visit"), "2"), interner);
+        Assert.assertEquals(second.size(), 1);
+        Assert.assertNull(second.getSchema("Visit"));
+        Assert.assertEquals(first.getSchema("Visit").getName(), "Visit");
+
+        // Nothing changed but the cursor: the schemata are shared
+        final SchemataSnapshot third = second.withCursor("3", System.currentTimeMillis());
+        Assert.assertEquals(third.getCursor(), "3");
+        Assert.assertEquals(third.getCreationTimeInMillis(), second.getCreationTimeInMillis());
+        Assert.assertSame(third.getSchema("Click"), second.getSchema("Click"));
+        Assert.assertTrue(third.hasSameSchemata(second));
+        Assert.assertFalse(second.hasSameSchemata(first));
+    }
+
+    private GoodwillSchema createSchema(final String name, final String sqlType)
+    {
+        final List<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>();
+        fields.add(new GoodwillSchemaField("id", "string", (short) 1, null, sqlType, null, null, null));
+        return new GoodwillSchema(name, fields);
+    }
+}
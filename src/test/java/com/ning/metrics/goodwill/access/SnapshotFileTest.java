@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010-2011 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.goodwill.access;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SnapshotFileTest
+{
+    @Test(groups = "fast")
+    public void testRoundTrip() throws Exception
+    {
+        final File file = File.createTempFile("goodwill-schemata", ".snapshot");
+        try {
+            final SchemataSnapshot snapshot = createSnapshot();
+            SnapshotFile.write(file, snapshot);
+
+            final SchemataSnapshot restored = SnapshotFile.read(file);
+            Assert.assertEquals(restored.getGeneration(), 1);
+            Assert.assertEquals(restored.size(), 2);
+            Assert.assertEquals(restored.getCreationTimeInMillis(), 1000);
+            Assert.assertEquals(restored.getValidationTimeInMillis(), 3000);
+            Assert.assertEquals(restored.getETag(), "\"v1\"");
+            Assert.assertNull(restored.getLastModified());
+            Assert.assertEquals(restored.getCursor(), "42");
+            Assert.assertEquals(restored.getLoadTimeInMillis("Visit"), 1000);
+            Assert.assertEquals(restored.getLoadTimeInMillis("Click"), 2000);
+
+            for (final GoodwillSchema schema : snapshot.getSchemata()) {
+                final GoodwillSchema copy = restored.getSchema(schema.getName());
+                Assert.assertEquals(copy.toString(), schema.toString());
+                Assert.assertEquals(copy.getSinkAddInfo(), schema.getSinkAddInfo());
+            }
+            Assert.assertEquals(restored.getSchema("Click").getFieldByPosition((short) 2).getSql().getLength(), Integer.valueOf(255));
+            Assert.assertNull(restored.getSchema("Click").getFieldByPosition((short) 2).getSql().getScale());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReadSnapshotSharesUnchangedSchemata() throws Exception
+    {
+        final File file = File.createTempFile("goodwill-schemata", ".snapshot");
+        try {
+            final SchemataSnapshot current = createSnapshot();
+            final GoodwillSchema[] schemata = new GoodwillSchema[]{createSchema("Visit", null), createSchema("Click", "hdfs:///events/click-v2")};
+            SnapshotFile.write(file, SchemataSnapshot.restore(2, schemata, new long[]{5000, 5000}, 5000, 5000, "\"v2\"", null, "43"));
+
+            final SchemataSnapshot published = SnapshotFile.read(file, 2).internAgainst(current, new SchemaInterner());
+            Assert.assertEquals(published.getGeneration(), 2);
+            Assert.assertEquals(published.getCursor(), "43");
+            Assert.assertEquals(published.getValidationTimeInMillis(), 5000);
+
+            // Unchanged: same object, same load time
+            Assert.assertSame(published.getSchema("Visit"), current.getSchema("Visit"));
+            Assert.assertEquals(published.getLoadTimeInMillis("Visit"), 1000);
+            // Changed: the decoded one
+            Assert.assertNotSame(published.getSchema("Click"), current.getSchema("Click"));
+            Assert.assertEquals(published.getSchema("Click").getSinkAddInfo(), "hdfs:///events/click-v2");
+            Assert.assertEquals(published.getLoadTimeInMillis("Click"), 5000);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCursorOnlyUpdate() throws Exception
+    {
+        final File file = File.createTempFile("goodwill-schemata", ".snapshot");
+        final File cursorFile = new File(file.getPath() + ".cursor");
+        try {
+            final SchemataSnapshot snapshot = createSnapshot();
+            SnapshotFile.write(file, snapshot);
+            final long length = file.length();
+
+            // The snapshot file is left alone
+            SnapshotFile.writeCursor(file, snapshot.withCursor("43", 4000));
+            Assert.assertEquals(file.length(), length);
+            Assert.assertEquals(SnapshotFile.read(file).getCursor(), "43");
+
+            // Replaced: the cursor saved aside belongs to the previous snapshot
+            final GoodwillSchema[] schemata = new GoodwillSchema[]{createSchema("Visit", null)};
+            SnapshotFile.write(file, SchemataSnapshot.restore(2, schemata, new long[]{5000}, 5000, 5000, null, null, "50"));
+            Assert.assertEquals(SnapshotFile.read(file).getCursor(), "50");
+        }
+        finally {
+            file.delete();
+            cursorFile.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testSharedCursorOnlyUpdate() throws Exception
+    {
+        final File file = File.createTempFile("goodwill-schemata", ".snapshot");
+        final File cursorFile = new File(file.getPath() + ".cursor");
+        try {
+            final SchemataSnapshot published = createSnapshot();
+            SnapshotFile.write(file, published);
+            final SharedSnapshotFile sharedFile = new SharedSnapshotFile(file);
+            final SchemataSnapshot current = sharedFile.readIfChanged(SchemataSnapshot.EMPTY, new SchemaInterner());
+            Assert.assertNull(sharedFile.readIfChanged(current, new SchemaInterner()));
+
+            // Followers pick up the new cursor, and keep their schemata
+            SnapshotFile.writeCursor(file, published.withCursor("43", 4000));
+            final SchemataSnapshot updated = sharedFile.readIfChanged(current, new SchemaInterner());
+            Assert.assertEquals(updated.getCursor(), "43");
+            Assert.assertTrue(updated.hasSameSchemata(current));
+            Assert.assertEquals(updated.getCreationTimeInMillis(), current.getCreationTimeInMillis());
+            Assert.assertNull(sharedFile.readIfChanged(updated, new SchemaInterner()));
+        }
+        finally {
+            file.delete();
+            cursorFile.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCorruptedFileIsRejected() throws Exception
+    {
+        final File file = File.createTempFile("goodwill-schemata", ".snapshot");
+        try {
+            SnapshotFile.write(file, createSnapshot());
+
+            final RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.seek(output.length() / 2);
+                final int value = output.read();
+                output.seek(output.length() / 2);
+                output.write(value ^ 0xff);
+            }
+            finally {
+                output.close();
+            }
+
+            try {
+                SnapshotFile.read(file);
+                Assert.fail("Corrupted file was loaded");
+            }
+            catch (IOException e) {
+                // Expected
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private SchemataSnapshot createSnapshot()
+    {
+        final GoodwillSchema[] schemata = new GoodwillSchema[]{createSchema("Visit", null), createSchema("Click", "hdfs:///events/click")};
+        return SchemataSnapshot.restore(1, schemata, new long[]{1000, 2000}, 1000, 3000, "\"v1\"", null, "42");
+    }
+
+    private GoodwillSchema createSchema(final String name, final String sinkAddInfo)
+    {
+        final List<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>();
+        fields.add(new GoodwillSchemaField("id", "string", (short) 1, "Event id", "bigint", null, null, null));
+        fields.add(new GoodwillSchemaField("path", "string", (short) 2, null, "varchar", 255, null, null));
+        fields.add(new GoodwillSchemaField("amount", "double", (short) 3, "Amount", "decimal", null, 2, 10));
+        return new GoodwillSchema(name, fields, sinkAddInfo);
+    }
+}
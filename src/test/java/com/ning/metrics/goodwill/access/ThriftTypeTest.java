@@ -23,6 +23,7 @@ import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 public class ThriftTypeTest
 {
@@ -87,4 +88,43 @@ public class ThriftTypeTest
         Assert.assertEquals(type.getName(), THRIFT_TYPE_NAME);
         Assert.assertEquals(type.getFieldByPosition(THRIFT_FIELD_POSITION).toString(), goodwillSchemaFieldWithSQLAndDescription.toString());
     }
+
+    @Test
+    public void testFieldIndexes() throws Exception
+    {
+        final ArrayList<GoodwillSchemaField> fields = new ArrayList<GoodwillSchemaField>();
+        fields.add(new GoodwillSchemaField("third", "string", (short) 3, null, null, null, null, null));
+        fields.add(new GoodwillSchemaField("far", "string", (short) 5000, null, null, null, null, null));
+        fields.add(new GoodwillSchemaField("first", "string", (short) 1, null, null, null, null, null));
+        final GoodwillSchema schema = new GoodwillSchema(THRIFT_TYPE_NAME, fields);
+
+        final List<GoodwillSchemaField> sortedFields = schema.getFields();
+        Assert.assertEquals(sortedFields.size(), 3);
+        Assert.assertEquals(sortedFields.get(0).getName(), "first");
+        Assert.assertEquals(sortedFields.get(1).getName(), "third");
+        Assert.assertEquals(sortedFields.get(2).getName(), "far");
+        Assert.assertEquals(schema.getSchema(), sortedFields);
+
+        Assert.assertEquals(schema.getFieldByPosition((short) 1).getName(), "first");
+        Assert.assertNull(schema.getFieldByPosition((short) 2));
+        Assert.assertEquals(schema.getFieldByPosition((short) 5000).getName(), "far");
+        Assert.assertNull(schema.getFieldByPosition((short) -1));
+        Assert.assertEquals(schema.getFieldByName("far").getId(), (short) 5000);
+
+        // Replace the field at position 3
+        schema.addThriftField(new GoodwillSchemaField("renamed", "string", (short) 3, null, null, null, null, null));
+        Assert.assertEquals(schema.getFields().size(), 3);
+        Assert.assertEquals(schema.getFields().get(1).getName(), "renamed");
+        Assert.assertNull(schema.getFieldByName("third"));
+        Assert.assertEquals(schema.getFieldByPosition((short) 3).getName(), "renamed");
+
+        // The view handed out earlier is not affected
+        Assert.assertEquals(sortedFields.get(1).getName(), "third");
+
+        // Positions outside of the dense table keep their order
+        schema.addThriftField(new GoodwillSchemaField("negative", "string", (short) -2, null, null, null, null, null));
+        Assert.assertEquals(schema.getFields().size(), 4);
+        Assert.assertEquals(schema.getFields().get(0).getName(), "negative");
+        Assert.assertEquals(schema.getFields().get(3).getName(), "far");
+    }
 }